@@ -0,0 +1,82 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how much Redis work each kind of event can have in flight at once, so that a surge of pings or plugin
+ * messages can't park every Netty thread on the pool. Each kind of work has its own permits, so pings never take
+ * permits away from logins.
+ * <p/>
+ * Pings and plugin messages are handled on BungeeCord's I/O threads, so they never wait for a permit. Logins are
+ * checked in the background while BungeeCord holds the connection, so they may wait a short while.
+ */
+class AdmissionControl {
+    enum WorkClass {
+        LOGIN, PING, PLUGIN_MESSAGE
+    }
+
+    private final Map<WorkClass, Semaphore> permits = new EnumMap<>(WorkClass.class);
+    private final Map<WorkClass, AtomicLong> rejections = new EnumMap<>(WorkClass.class);
+    private final long loginTimeout;
+
+    AdmissionControl(int logins, int pings, int pluginMessages, long loginTimeout) {
+        permits.put(WorkClass.LOGIN, new Semaphore(logins));
+        permits.put(WorkClass.PING, new Semaphore(pings));
+        permits.put(WorkClass.PLUGIN_MESSAGE, new Semaphore(pluginMessages));
+        for (WorkClass workClass : WorkClass.values())
+            rejections.put(workClass, new AtomicLong());
+        this.loginTimeout = loginTimeout;
+    }
+
+    /**
+     * Try to get a permit to use Redis. Logins wait a short while for a permit, so they must not be acquired on an I/O
+     * thread; everything else fails immediately. If this returns true, {@link #release(WorkClass)} must be called once
+     * the work is done.
+     */
+    boolean tryAcquire(WorkClass workClass) {
+        boolean acquired;
+        if (workClass == WorkClass.LOGIN) {
+            try {
+                acquired = permits.get(workClass).tryAcquire(loginTimeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                acquired = false;
+            }
+        } else {
+            acquired = permits.get(workClass).tryAcquire();
+        }
+        if (!acquired)
+            rejections.get(workClass).incrementAndGet();
+        return acquired;
+    }
+
+    void release(WorkClass workClass) {
+        permits.get(workClass).release();
+    }
+
+    Map<String, Integer> getAvailablePermits() {
+        ImmutableMap.Builder<String, Integer> builder = ImmutableMap.builder();
+        for (Map.Entry<WorkClass, Semaphore> entry : permits.entrySet())
+            builder.put(entry.getKey().name().toLowerCase(), entry.getValue().availablePermits());
+        return builder.build();
+    }
+
+    Map<String, Long> getRejections() {
+        ImmutableMap.Builder<String, Long> builder = ImmutableMap.builder();
+        for (Map.Entry<WorkClass, AtomicLong> entry : rejections.entrySet())
+            builder.put(entry.getKey().name().toLowerCase(), entry.getValue().get());
+        return builder.build();
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link JedisPool} that keeps track of how many connections are in use and how long callers wait for one, so that a
+ * saturated pool shows up before it starts holding up logins.
+ */
+class MeteredJedisPool extends JedisPool {
+    private final String name;
+    private final int maxSize;
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    MeteredJedisPool(String name, JedisPoolConfig config, String host, int port, int timeout, String password) {
+        super(config, host, port, timeout, password);
+        this.name = name;
+        this.maxSize = config.getMaxActive();
+    }
+
+    @Override
+    public Jedis getResource() {
+        long start = System.nanoTime();
+        try {
+            Jedis jedis = super.getResource();
+            borrows.incrementAndGet();
+            return jedis;
+        } catch (JedisConnectionException e) {
+            exhausted.incrementAndGet();
+            throw e;
+        } finally {
+            long waited = System.nanoTime() - start;
+            totalWaitNanos.addAndGet(waited);
+            long max;
+            while (waited > (max = maxWaitNanos.get()))
+                if (maxWaitNanos.compareAndSet(max, waited)) break;
+        }
+    }
+
+    PoolStats getStats() {
+        return new PoolStats(name, maxSize, internalPool.getNumActive(), internalPool.getNumIdle(), borrows.get(),
+                exhausted.get(), totalWaitNanos.get(), maxWaitNanos.get());
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.collect.AbstractIterator;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Walks every player on the network, starting with local players and then paging through each other proxy's
+ * <code>usersOnline</code> set with <code>SSCAN</code>. Only one page is held in memory at a time, and a pooled
+ * connection is only borrowed while a page is being fetched.
+ * <p/>
+ * Players who are on this proxy are never returned twice. A player who is in the middle of switching between two
+ * other proxies may be returned twice, or not at all, much like <code>SSCAN</code> itself.
+ */
+class OnlinePlayerIterator extends AbstractIterator<String> {
+    private static final int PAGE_SIZE = 100;
+
+    private final JedisPool pool;
+    private final Set<String> localPlayers;
+    private final Iterator<String> proxies;
+    private Iterator<String> page;
+    private String currentProxy = null;
+    private int cursor = 0;
+
+    OnlinePlayerIterator(JedisPool pool, Set<String> localPlayers, List<String> otherProxies) {
+        this.pool = pool;
+        this.localPlayers = localPlayers;
+        this.page = localPlayers.iterator();
+        this.proxies = pool == null ? Collections.<String>emptyIterator() : otherProxies.iterator();
+    }
+
+    @Override
+    protected String computeNext() {
+        while (true) {
+            while (page.hasNext()) {
+                String player = page.next();
+                if (currentProxy == null || !localPlayers.contains(player))
+                    return player;
+            }
+            if (currentProxy != null && cursor != 0) {
+                page = fetchPage();
+                continue;
+            }
+            if (!proxies.hasNext())
+                return endOfData();
+            currentProxy = proxies.next();
+            cursor = 0;
+            page = fetchPage();
+        }
+    }
+
+    private Iterator<String> fetchPage() {
+        Jedis rsc = pool.getResource();
+        try {
+            ScanParams params = new ScanParams();
+            params.count(PAGE_SIZE);
+            ScanResult<String> result = rsc.sscan(RedisKeys.usersOnline(currentProxy), cursor, params);
+            cursor = result.getCursor();
+            return result.getResult().iterator();
+        } catch (JedisConnectionException e) {
+            // Redis server has disappeared!
+            pool.returnBrokenResource(rsc);
+            rsc = null;
+            throw new RuntimeException("Unable to get all players online", e);
+        } finally {
+            if (rsc != null)
+                pool.returnResource(rsc);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableMap;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The Redis side of the player bookkeeping done by {@link RedisBungee}'s event handlers for one proxy, along with the
+ * near-cache in front of per-player lookups. Nothing here depends on BungeeCord, so the load generator can drive the
+ * same code for many simulated proxies at once.
+ * <p/>
+ * Methods that take a {@link Jedis} leave connection failures to the caller, which owns the connection. Commands on the
+ * hot paths use Jedis' binary variants with pre-encoded field names, so they don't round-trip every key and value
+ * through an intermediate {@link String}.
+ */
+class PlayerTracker {
+    private static final byte[] ZERO = RedisKeys.encode("0");
+    private static final byte[] ONLINE = RedisKeys.encode("online");
+    private static final byte[] SERVER = RedisKeys.encode("server");
+    private static final byte[] IP = RedisKeys.encode("ip");
+    // The fields getPlayerData fetches, in the same order as the byte[] names passed to HMGET.
+    private static final String[] FIELDS = {"online", "server", "ip"};
+    private static final byte[] DATA_CHANNEL = RedisKeys.encode("redisbungee-data");
+    private static final int CACHE_STRIPES = 64;
+
+    private final RedisKeys keys;
+    private final Logger logger;
+    private final Cache<String, Map<String, String>> playerCache;
+    // Bumped whenever a player's cached data is invalidated, so that loads which raced with an invalidation are dropped.
+    private final AtomicLongArray cacheGenerations = new AtomicLongArray(CACHE_STRIPES);
+
+    PlayerTracker(RedisKeys keys, Logger logger, int cacheSize, int cacheTtlSeconds) {
+        this.keys = keys;
+        this.logger = logger;
+        this.playerCache = CacheBuilder.newBuilder()
+                .maximumSize(cacheSize)
+                .expireAfterWrite(cacheTtlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Checks whether a player is online on any proxy, including this one.
+     */
+    boolean isOnline(Jedis rsc, String name) {
+        byte[] encoded = RedisKeys.encode(name);
+        for (byte[] usersOnline : keys.allUsersOnlineBytes) {
+            if (rsc.sismember(usersOnline, encoded))
+                return true;
+        }
+        return false;
+    }
+
+    void join(Jedis rsc, String name, String ip) {
+        byte[] encodedName = RedisKeys.encode(name);
+        byte[] player = RedisKeys.playerBytes(name);
+        byte[] encodedIp = RedisKeys.encode(ip);
+        rsc.sadd(keys.usersOnlineBytes, encodedName);
+        rsc.incr(keys.playerCountBytes);
+        rsc.hset(player, ONLINE, ZERO);
+        // If the player was never cleaned up (say, after a crash), they are still indexed under their old address.
+        byte[] oldIp = rsc.hget(player, IP);
+        if (oldIp != null && !Arrays.equals(oldIp, encodedIp))
+            rsc.srem(RedisKeys.ip(oldIp), encodedName);
+        rsc.hset(player, IP, encodedIp);
+        rsc.sadd(RedisKeys.ip(encodedIp), encodedName);
+        publishChange(rsc, "join", name, null);
+    }
+
+    void changeServer(Jedis rsc, String name, String server) {
+        rsc.hset(RedisKeys.playerBytes(name), SERVER, RedisKeys.encode(server));
+        publishChange(rsc, "serverchange", name, server);
+    }
+
+    void leave(Jedis rsc, String name) {
+        rsc.hset(RedisKeys.playerBytes(name), ONLINE, RedisKeys.encode(String.valueOf(System.currentTimeMillis())));
+        rsc.decr(keys.playerCountBytes);
+        cleanUp(rsc, name);
+        publishChange(rsc, "leave", name, null);
+    }
+
+    /**
+     * Removes a player from this proxy, without marking when they were last online.
+     */
+    void cleanUp(Jedis rsc, String name) {
+        byte[] encodedName = RedisKeys.encode(name);
+        byte[] player = RedisKeys.playerBytes(name);
+        rsc.srem(keys.usersOnlineBytes, encodedName);
+        rsc.hdel(player, SERVER);
+        byte[] ip = rsc.hget(player, IP);
+        if (ip != null)
+            rsc.srem(RedisKeys.ip(ip), encodedName);
+        rsc.hdel(player, IP);
+        invalidate(name);
+    }
+
+    /**
+     * Removes a player who was left on this proxy (say, after a crash) and is not on any other proxy, and tells every
+     * proxy that they have left the network.
+     */
+    void evict(Jedis rsc, String name) {
+        cleanUp(rsc, name);
+        publishChange(rsc, "leave", name, null);
+    }
+
+    /**
+     * Adds up the player counts of every other proxy. Counts that can't be parsed are reset to 0.
+     */
+    int countOtherProxies(Jedis rsc) {
+        if (keys.otherPlayerCountBytes.length == 0)
+            return 0;
+        int c = 0;
+        List<byte[]> counts = rsc.mget(keys.otherPlayerCountBytes);
+        for (int i = 0; i < counts.size(); i++) {
+            byte[] count = counts.get(i);
+            if (count == null) continue;
+            try {
+                c += RedisKeys.parseCount(count);
+            } catch (NumberFormatException e) {
+                logger.severe("I found a funny number for " + keys.otherProxies.get(i) + "'s player count. Resetting it to 0.");
+                rsc.set(keys.otherPlayerCountBytes[i], ZERO);
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Walks every player on the network, given the players on this proxy.
+     *
+     * @see OnlinePlayerIterator
+     */
+    Iterator<String> iteratePlayers(JedisPool pool, Set<String> localPlayers) {
+        return new OnlinePlayerIterator(pool, localPlayers, keys.otherProxies);
+    }
+
+    /**
+     * Fetches the <code>online</code>, <code>server</code> and <code>ip</code> fields of a player's
+     * <code>player:&lt;name&gt;</code> hash, using the near-cache where possible. Players that have never been seen are
+     * cached as an empty map.
+     * <p/>
+     * The fields are fetched with a binary <code>HMGET</code> rather than <code>HGETALL</code>, which needs Jedis to
+     * build a map of wrapped byte arrays before we can copy it into our own.
+     */
+    Map<String, String> getPlayerData(JedisPool pool, String name) {
+        Map<String, String> data = playerCache.getIfPresent(name);
+        if (data != null)
+            return data;
+        int stripe = cacheStripe(name);
+        long generation = cacheGenerations.get(stripe);
+        Jedis tmpRsc = pool.getResource();
+        try {
+            List<byte[]> fetched = tmpRsc.hmget(RedisKeys.playerBytes(name), ONLINE, SERVER, IP);
+            ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
+            for (int i = 0; i < FIELDS.length; i++)
+                if (fetched.get(i) != null)
+                    builder.put(FIELDS[i], RedisKeys.decode(fetched.get(i)));
+            data = builder.build();
+        } catch (JedisConnectionException e) {
+            // Redis server has disappeared!
+            logger.log(Level.SEVERE, "Unable to get connection from pool - did your Redis server go away?", e);
+            pool.returnBrokenResource(tmpRsc);
+            tmpRsc = null;
+            throw new RuntimeException("Unable to get data for " + name, e);
+        } finally {
+            if (tmpRsc != null)
+                pool.returnResource(tmpRsc);
+        }
+        playerCache.put(name, data);
+        // If the player changed while we were fetching, what we just cached may already be out of date.
+        if (cacheGenerations.get(stripe) != generation)
+            playerCache.invalidate(name);
+        return data;
+    }
+
+    void invalidate(String name) {
+        cacheGenerations.incrementAndGet(cacheStripe(name));
+        playerCache.invalidate(name);
+    }
+
+    CacheStats getCacheStats() {
+        return playerCache.stats();
+    }
+
+    /**
+     * Handles a change message from any proxy (including this one) by dropping the player from the near-cache.
+     *
+     * @return the parts of the message (<code>action, proxyId, player[, server]</code>), or null if it is malformed
+     */
+    String[] onChange(String message) {
+        String[] parts = message.split(":", 4);
+        if (parts.length < 3)
+            return null;
+        invalidate(parts[2]);
+        return parts;
+    }
+
+    /**
+     * Drops a player from our cache, and tells every proxy (including this one) that the player has changed, so that
+     * they can drop their cached data and fire the appropriate network event.
+     * <p/>
+     * Messages take the form <code>action:proxyId:player[:server]</code>.
+     */
+    private void publishChange(Jedis rsc, String action, String name, String server) {
+        invalidate(name);
+        String message = action + ":" + keys.serverId + ":" + name;
+        if (server != null)
+            message += ":" + server;
+        rsc.publish(DATA_CHANNEL, RedisKeys.encode(message));
+    }
+
+    private static int cacheStripe(String name) {
+        return (name.hashCode() & Integer.MAX_VALUE) % CACHE_STRIPES;
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.base.Joiner;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares the answers to identical <code>PlayerList</code> and <code>PlayerCount</code> plugin messages between the
+ * servers that ask for them. Concurrent requests for the same query wait on a single load, and the answer is reused
+ * for a short while.
+ */
+class PluginQueryCache {
+    interface Loader {
+        byte[] load(String subchannel, String argument);
+    }
+
+    private final LoadingCache<String, byte[]> cache;
+
+    PluginQueryCache(long expiryMillis, final Loader loader) {
+        cache = CacheBuilder.newBuilder()
+                .expireAfterWrite(expiryMillis, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build(new CacheLoader<String, byte[]>() {
+                    @Override
+                    public byte[] load(String key) {
+                        int idx = key.indexOf(':');
+                        return loader.load(key.substring(0, idx), key.substring(idx + 1));
+                    }
+                });
+    }
+
+    byte[] get(String subchannel, String argument) {
+        return cache.getUnchecked(subchannel + ":" + argument);
+    }
+
+    byte[] getIfPresent(String subchannel, String argument) {
+        return cache.getIfPresent(subchannel + ":" + argument);
+    }
+
+    /**
+     * Drops the cached answers that change whenever anyone joins or leaves the network.
+     */
+    void invalidateNetworkTotals() {
+        cache.invalidate("PlayerCount:ALL");
+        cache.invalidate("PlayerList:ALL");
+    }
+
+    CacheStats stats() {
+        return cache.stats();
+    }
+
+    /**
+     * Encodes the answer to a <code>PlayerList</code> plugin message.
+     */
+    static byte[] playerList(boolean all, Collection<String> players) {
+        ByteArrayDataOutput out = ByteStreams.newDataOutput();
+        out.writeUTF("Players");
+        if (all)
+            out.writeUTF("ALL");
+        out.writeUTF(Joiner.on(',').join(players));
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import lombok.Value;
+
+/**
+ * A snapshot of how busy one of RedisBungee's Redis connection pools is.
+ *
+ * @see RedisBungeeAPI#getPoolStats()
+ * @since 0.2.6
+ */
+@Value
+public class PoolStats {
+    /**
+     * The name of the pool: <code>login</code>, <code>read</code> or <code>maintenance</code>.
+     */
+    String name;
+    /**
+     * The most connections this pool will hand out at once.
+     */
+    int maxSize;
+    /**
+     * How many connections are handed out right now. A pool whose active count stays at {@link #getMaxSize()} is
+     * saturated.
+     */
+    int active;
+    /**
+     * How many open connections are sitting in the pool, ready to be handed out.
+     */
+    int idle;
+    /**
+     * How many connections have been handed out.
+     */
+    long borrows;
+    /**
+     * How many times a connection could not be handed out, usually because the pool was exhausted.
+     */
+    long exhausted;
+    /**
+     * The total time callers have spent waiting for a connection, in nanoseconds.
+     */
+    long totalWaitNanos;
+    /**
+     * The longest time a caller has waited for a connection, in nanoseconds.
+     */
+    long maxWaitNanos;
+}
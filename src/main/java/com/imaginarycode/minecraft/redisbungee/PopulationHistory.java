@@ -0,0 +1,207 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps a rolling history of player counts in Redis. Each series is stored once per {@link Resolution}, in a hash with
+ * a fixed number of slots that are reused as time wraps around, so neither reads nor writes get slower as history
+ * builds up.
+ * <p/>
+ * Each proxy only ever writes its own series, so the current bucket for each series is kept in memory and simply
+ * written over its slot on every sample. The first time a series is written after a restart, the bucket is seeded from
+ * its slot, so that the samples taken before the restart aren't lost.
+ * <p/>
+ * Series are stored in <code>history:&lt;proxy&gt;:&lt;resolution&gt;</code> for the proxy as a whole, and
+ * <code>history:&lt;proxy&gt;:&lt;resolution&gt;:&lt;server&gt;</code> for each server behind it. Slots hold
+ * <code>start,peak,average,samples</code>.
+ */
+public class PopulationHistory {
+    /**
+     * How finely history is kept. Finer resolutions cover a shorter period of time.
+     */
+    public enum Resolution {
+        /**
+         * 10 second buckets covering the last hour.
+         */
+        SECONDS(10000L, 360),
+        /**
+         * 1 minute buckets covering the last day.
+         */
+        MINUTES(60000L, 1440),
+        /**
+         * 1 hour buckets covering the last 30 days.
+         */
+        HOURS(3600000L, 720);
+
+        private final long bucketLength;
+        private final int slots;
+
+        Resolution(long bucketLength, int slots) {
+            this.bucketLength = bucketLength;
+            this.slots = slots;
+        }
+    }
+
+    private final Map<String, Bucket> current = new HashMap<>();
+
+    /**
+     * Record the number of players on a proxy, and on each of its servers.
+     */
+    synchronized void record(Jedis rsc, String proxyId, int proxyCount, Map<String, Integer> serverCounts, long now) {
+        Map<String, Integer> counts = new HashMap<>();
+        counts.put(null, proxyCount);
+        counts.putAll(serverCounts);
+
+        // Series we haven't written since starting up may already have a sample in their current slot.
+        Pipeline pipeline = rsc.pipelined();
+        Map<String, Response<String>> existing = new HashMap<>();
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            for (Resolution resolution : Resolution.values()) {
+                String key = key(proxyId, entry.getKey(), resolution);
+                if (!current.containsKey(key))
+                    existing.put(key, pipeline.hget(key, slot(resolution, bucketStart(resolution, now))));
+            }
+        }
+        pipeline.sync();
+
+        pipeline = rsc.pipelined();
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            for (Resolution resolution : Resolution.values()) {
+                String key = key(proxyId, entry.getKey(), resolution);
+                long start = bucketStart(resolution, now);
+                Bucket bucket = current.get(key);
+                if (bucket == null || bucket.start != start) {
+                    Response<String> stored = existing.get(key);
+                    bucket = stored == null ? new Bucket(start) : Bucket.parse(start, stored.get());
+                    current.put(key, bucket);
+                }
+                bucket.add(entry.getValue());
+                pipeline.hset(key, slot(resolution, start),
+                        start + "," + bucket.peak + "," + bucket.sum / bucket.samples + "," + bucket.samples);
+            }
+        }
+        pipeline.sync();
+    }
+
+    private static long bucketStart(Resolution resolution, long now) {
+        return now - now % resolution.bucketLength;
+    }
+
+    private static String slot(Resolution resolution, long start) {
+        return String.valueOf((start / resolution.bucketLength) % resolution.slots);
+    }
+
+    /**
+     * Fetch history for one server (or a whole proxy, if server is null), added up over the given proxies.
+     * <p/>
+     * When more than one proxy is given, the peak for each bucket is the sum of each proxy's peak, so it may be a
+     * little higher than the true peak.
+     */
+    static List<PopulationSample> fetch(Jedis rsc, List<String> proxyIds, String server, Resolution resolution) {
+        long oldest = System.currentTimeMillis() - resolution.bucketLength * resolution.slots;
+        Map<Long, int[]> totals = new TreeMap<>();
+        for (String proxyId : proxyIds) {
+            for (String value : rsc.hgetAll(key(proxyId, server, resolution)).values()) {
+                String[] parts = value.split(",");
+                if (parts.length < 3) continue;
+                long start;
+                int[] sample;
+                try {
+                    start = Long.parseLong(parts[0]);
+                    sample = new int[]{Integer.parseInt(parts[1]), Integer.parseInt(parts[2])};
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                // This slot has not been written since the last time around.
+                if (start < oldest) continue;
+                int[] total = totals.get(start);
+                if (total == null) {
+                    totals.put(start, sample);
+                } else {
+                    total[0] += sample[0];
+                    total[1] += sample[1];
+                }
+            }
+        }
+        List<PopulationSample> samples = new ArrayList<>(totals.size());
+        for (Map.Entry<Long, int[]> entry : totals.entrySet())
+            samples.add(new PopulationSample(entry.getKey(), entry.getValue()[0], entry.getValue()[1]));
+        return Collections.unmodifiableList(samples);
+    }
+
+    /**
+     * Find the sample with the highest peak, or null if there are no samples.
+     */
+    static PopulationSample peak(List<PopulationSample> samples) {
+        return samples.isEmpty() ? null : Collections.max(samples, new Comparator<PopulationSample>() {
+            @Override
+            public int compare(PopulationSample o1, PopulationSample o2) {
+                return Integer.compare(o1.getPeak(), o2.getPeak());
+            }
+        });
+    }
+
+    private static String key(String proxyId, String server, Resolution resolution) {
+        String key = "history:" + proxyId + ":" + resolution.name().toLowerCase();
+        return server == null ? key : key + ":" + server;
+    }
+
+    private static class Bucket {
+        private final long start;
+        private int peak = 0;
+        private long sum = 0;
+        private int samples = 0;
+
+        private Bucket(long start) {
+            this.start = start;
+        }
+
+        /**
+         * Creates a bucket holding what was stored in its slot, if the slot is for the same bucket.
+         */
+        private static Bucket parse(long start, String stored) {
+            Bucket bucket = new Bucket(start);
+            if (stored == null)
+                return bucket;
+            String[] parts = stored.split(",");
+            if (parts.length < 3)
+                return bucket;
+            try {
+                if (Long.parseLong(parts[0]) != start)
+                    return bucket;
+                int peak = Integer.parseInt(parts[1]);
+                long average = Long.parseLong(parts[2]);
+                int samples = parts.length > 3 ? Integer.parseInt(parts[3]) : 1;
+                if (samples <= 0)
+                    return bucket;
+                bucket.peak = peak;
+                bucket.sum = average * samples;
+                bucket.samples = samples;
+            } catch (NumberFormatException ignored) {
+            }
+            return bucket;
+        }
+
+        private void add(int count) {
+            peak = Math.max(peak, count);
+            sum += count;
+            samples++;
+        }
+    }
+}
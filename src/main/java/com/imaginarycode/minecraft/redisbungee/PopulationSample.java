@@ -0,0 +1,31 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import lombok.Value;
+
+/**
+ * One bucket of population history: the peak and average player count seen during the bucket.
+ *
+ * @see RedisBungeeAPI#getPopulationHistory(String, String, PopulationHistory.Resolution)
+ * @since 0.2.6
+ */
+@Value
+public class PopulationSample {
+    /**
+     * When this bucket started, in milliseconds.
+     */
+    long timestamp;
+    /**
+     * The highest player count recorded during this bucket.
+     */
+    int peak;
+    /**
+     * The average player count recorded during this bucket.
+     */
+    int average;
+}
@@ -0,0 +1,24 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+/**
+ * Answers a query sent to every proxy with {@link RedisBungeeAPI#queryProxies(String, String, long)}. Handlers should
+ * only look at the state of their own proxy, and are not called on the main thread.
+ *
+ * @see RedisBungeeAPI#registerQueryHandler(String, ProxyQueryHandler)
+ * @since 0.2.6
+ */
+public interface ProxyQueryHandler {
+    /**
+     * Answer a query.
+     *
+     * @param argument the argument the query was sent with, which may be empty
+     * @return the reply to send back, or null to not reply
+     */
+    String handle(String argument);
+}
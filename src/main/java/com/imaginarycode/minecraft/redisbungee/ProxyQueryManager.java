@@ -0,0 +1,145 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.collect.ImmutableMap;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Sends queries to every proxy over PubSub and gathers their replies.
+ * <p/>
+ * Queries are published on <code>redisbungee-query</code> as <code>id:origin:type:argument</code>. Each proxy answers
+ * on <code>redisbungee-reply-&lt;origin&gt;</code> with <code>id:proxyId:response</code>.
+ */
+class ProxyQueryManager {
+    private final JedisPool pool;
+    private final RedisExecutor executor;
+    private final String serverId;
+    private final Logger logger;
+    private final Map<String, ProxyQueryHandler> handlers = new ConcurrentHashMap<>();
+    private final Map<String, PendingQuery> pending = new ConcurrentHashMap<>();
+
+    ProxyQueryManager(JedisPool pool, RedisExecutor executor, String serverId, Logger logger) {
+        this.pool = pool;
+        this.executor = executor;
+        this.serverId = serverId;
+        this.logger = logger;
+    }
+
+    void registerHandler(String type, ProxyQueryHandler handler) {
+        handlers.put(type, handler);
+    }
+
+    void unregisterHandler(String type) {
+        handlers.remove(type);
+    }
+
+    /**
+     * Send a query to every proxy and wait until they have all replied or the deadline passes, whichever is first.
+     * Replies that arrived in time are returned, keyed by proxy ID.
+     *
+     * @throws IllegalStateException if called from one of BungeeCord's network threads, which can't be held up
+     */
+    Map<String, ProxyQueryReply> query(String type, String argument, int proxies, long timeoutMillis) {
+        checkState(!isNetworkThread(Thread.currentThread()), "Proxy queries block, so they may not be sent from a network thread");
+        String id = UUID.randomUUID().toString();
+        PendingQuery query = new PendingQuery(proxies);
+        pending.put(id, query);
+        try {
+            publish("redisbungee-query", id + ":" + serverId + ":" + type + ":" + argument);
+            try {
+                query.latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // Hand back whatever we have so far.
+                Thread.currentThread().interrupt();
+            }
+            return ImmutableMap.copyOf(query.replies);
+        } finally {
+            pending.remove(id);
+        }
+    }
+
+    void onQuery(String message) {
+        final String[] parts = message.split(":", 4);
+        if (parts.length < 4)
+            return;
+        final ProxyQueryHandler handler = handlers.get(parts[2]);
+        if (handler == null)
+            return;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String response;
+                try {
+                    response = handler.handle(parts[3]);
+                } catch (Exception e) {
+                    logger.log(Level.SEVERE, "Unable to answer " + parts[2] + " query from " + parts[1], e);
+                    return;
+                }
+                if (response != null)
+                    publish("redisbungee-reply-" + parts[1], parts[0] + ":" + serverId + ":" + response);
+            }
+        });
+    }
+
+    void onReply(String message) {
+        String[] parts = message.split(":", 3);
+        if (parts.length < 3)
+            return;
+        PendingQuery query = pending.get(parts[0]);
+        if (query == null)
+            return; // too late
+        long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - query.sent);
+        if (query.replies.put(parts[1], new ProxyQueryReply(parts[1], parts[2], latency)) == null)
+            query.latch.countDown();
+    }
+
+    /**
+     * BungeeCord's Netty threads handle every connection's packets, so blocking one stalls all of its players.
+     */
+    static boolean isNetworkThread(Thread thread) {
+        return thread.getName().startsWith("Netty ");
+    }
+
+    private void publish(String channel, String message) {
+        Jedis rsc = pool.getResource();
+        try {
+            rsc.publish(channel, message);
+        } catch (JedisConnectionException e) {
+            // Redis server has disappeared!
+            logger.log(Level.SEVERE, "Unable to get connection from pool - did your Redis server go away?", e);
+            pool.returnBrokenResource(rsc);
+            rsc = null;
+            throw new RuntimeException("Unable to publish query", e);
+        } finally {
+            if (rsc != null)
+                pool.returnResource(rsc);
+        }
+    }
+
+    private static class PendingQuery {
+        private final long sent = System.nanoTime();
+        private final CountDownLatch latch;
+        private final Map<String, ProxyQueryReply> replies = new ConcurrentHashMap<>();
+
+        private PendingQuery(int proxies) {
+            latch = new CountDownLatch(proxies);
+        }
+    }
+}
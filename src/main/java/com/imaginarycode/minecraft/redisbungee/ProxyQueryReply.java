@@ -0,0 +1,30 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import lombok.Value;
+
+/**
+ * One proxy's reply to a query sent with {@link RedisBungeeAPI#queryProxies(String, String, long)}.
+ *
+ * @since 0.2.6
+ */
+@Value
+public class ProxyQueryReply {
+    /**
+     * The ID of the proxy that replied.
+     */
+    String proxyId;
+    /**
+     * The reply from the proxy's {@link ProxyQueryHandler}.
+     */
+    String response;
+    /**
+     * How long it took for the reply to arrive after the query was sent, in milliseconds.
+     */
+    long latency;
+}
@@ -7,19 +7,25 @@
 package com.imaginarycode.minecraft.redisbungee;
 
 import com.google.common.base.Joiner;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.Multimap;
 import com.google.common.io.ByteArrayDataInput;
 import com.google.common.io.ByteArrayDataOutput;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.imaginarycode.minecraft.redisbungee.events.PlayerChangedServerNetworkEvent;
+import com.imaginarycode.minecraft.redisbungee.events.PlayerJoinedNetworkEvent;
+import com.imaginarycode.minecraft.redisbungee.events.PlayerLeftNetworkEvent;
 import lombok.NonNull;
 import net.md_5.bungee.api.ServerPing;
 import net.md_5.bungee.api.config.ServerInfo;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
 import net.md_5.bungee.api.connection.Server;
 import net.md_5.bungee.api.event.*;
+import net.md_5.bungee.api.plugin.Event;
 import net.md_5.bungee.api.plugin.Listener;
 import net.md_5.bungee.api.plugin.Plugin;
 import net.md_5.bungee.config.Configuration;
@@ -33,9 +39,16 @@ import redis.clients.jedis.exceptions.JedisException;
 import java.io.*;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
@@ -48,10 +61,24 @@ import static com.google.common.base.Preconditions.checkArgument;
  */
 public final class RedisBungee extends Plugin implements Listener {
     private static Configuration configuration;
-    private JedisPool pool;
+    private MeteredJedisPool pool;
+    private MeteredJedisPool readPool;
+    private MeteredJedisPool maintenancePool;
+    private String redisServer;
+    private int redisPort;
+    private String redisPassword;
     private static RedisBungeeAPI api;
     private PubSubListener psl = null;
     private static List<String> serverIds;
+    private RedisKeys keys;
+    private PlayerTracker tracker;
+    private PluginQueryCache pluginQueryCache;
+    private AdmissionControl admissionControl;
+    private RedisExecutor redisExecutor;
+    private ExecutorService eventExecutor;
+    private ProxyQueryManager queryManager;
+    private final PopulationHistory populationHistory = new PopulationHistory();
+    private volatile int lastCount = 0;
 
     /**
      * Fetch the {@link RedisBungeeAPI} object created on plugin start.
@@ -71,8 +98,11 @@ public final class RedisBungee extends Plugin implements Listener {
     }
 
     final Multimap<String, String> serversToPlayers() {
-        ImmutableMultimap.Builder<String, String> multimapBuilder = ImmutableMultimap.builder();
-        for (String p : getPlayers()) {
+        // A set multimap, as the iterator may return a player who is switching proxies twice.
+        ImmutableSetMultimap.Builder<String, String> multimapBuilder = ImmutableSetMultimap.builder();
+        Iterator<String> players = iteratePlayers();
+        while (players.hasNext()) {
+            String p = players.next();
             ServerInfo si = getServerFor(p);
             if (si != null)
                 multimapBuilder = multimapBuilder.put(si.getName(), p);
@@ -83,27 +113,21 @@ public final class RedisBungee extends Plugin implements Listener {
     final int getCount() {
         int c = getProxy().getOnlineCount();
         if (pool != null) {
-            Jedis rsc = pool.getResource();
+            Jedis rsc = readPool.getResource();
             try {
-                for (String i : serverIds) {
-                    if (i.equals(configuration.getString("server-id"))) continue;
-                    if (rsc.exists("server:" + i + ":playerCount"))
-                        try {
-                            c += Integer.valueOf(rsc.get("server:" + i + ":playerCount"));
-                        } catch (NumberFormatException e) {
-                            getLogger().severe("I found a funny number for " + i + "'s player count. Resetting it to 0.");
-                            rsc.set("server:" + i + ":playerCount", "0");
-                        }
-                }
+                c += tracker.countOtherProxies(rsc);
             } catch (JedisConnectionException e) {
                 // Redis server has disappeared!
                 getLogger().log(Level.SEVERE, "Unable to get connection from pool - did your Redis server go away?", e);
-                pool.returnBrokenResource(rsc);
+                readPool.returnBrokenResource(rsc);
+                rsc = null;
                 throw new RuntimeException("Unable to get total player count", e);
             } finally {
-                pool.returnResource(rsc);
+                if (rsc != null)
+                    readPool.returnResource(rsc);
             }
         }
+        lastCount = c;
         return c;
     }
 
@@ -117,26 +141,32 @@ public final class RedisBungee extends Plugin implements Listener {
     final Set<String> getPlayers() {
         ImmutableSet.Builder<String> setBuilder = ImmutableSet.<String>builder().addAll(getLocalPlayers());
         if (pool != null) {
-            Jedis rsc = pool.getResource();
+            Jedis rsc = readPool.getResource();
             try {
                 for (String i : serverIds) {
-                    if (i.equals(configuration.getString("server-id"))) continue;
-                    Set<String> users = rsc.smembers("server:" + i + ":usersOnline");
+                    if (i.equals(keys.serverId)) continue;
+                    Set<String> users = rsc.smembers(RedisKeys.usersOnline(i));
                     if (users != null && !users.isEmpty())
                         setBuilder = setBuilder.addAll(users);
                 }
             } catch (JedisConnectionException e) {
                 // Redis server has disappeared!
                 getLogger().log(Level.SEVERE, "Unable to get connection from pool - did your Redis server go away?", e);
-                pool.returnBrokenResource(rsc);
+                readPool.returnBrokenResource(rsc);
+                rsc = null;
                 throw new RuntimeException("Unable to get all players online", e);
             } finally {
-                pool.returnResource(rsc);
+                if (rsc != null)
+                    readPool.returnResource(rsc);
             }
         }
         return setBuilder.build();
     }
 
+    final Iterator<String> iteratePlayers() {
+        return tracker.iteratePlayers(readPool, getLocalPlayers());
+    }
+
     final Set<String> getPlayersOnServer(@NonNull String server) {
         checkArgument(getProxy().getServerInfo(server) != null, "server doesn't exist");
         return ImmutableSet.copyOf(serversToPlayers().get(server));
@@ -146,18 +176,9 @@ public final class RedisBungee extends Plugin implements Listener {
         ServerInfo server = null;
         if (getProxy().getPlayer(name) != null) return getProxy().getPlayer(name).getServer().getInfo();
         if (pool != null) {
-            Jedis tmpRsc = pool.getResource();
-            try {
-                if (tmpRsc.hexists("player:" + name, "server"))
-                    server = getProxy().getServerInfo(tmpRsc.hget("player:" + name, "server"));
-            } catch (JedisConnectionException e) {
-                // Redis server has disappeared!
-                getLogger().log(Level.SEVERE, "Unable to get connection from pool - did your Redis server go away?", e);
-                pool.returnBrokenResource(tmpRsc);
-                throw new RuntimeException("Unable to get server for " + name, e);
-            } finally {
-                pool.returnResource(tmpRsc);
-            }
+            String serverName = tracker.getPlayerData(readPool, name).get("server");
+            if (serverName != null)
+                server = getProxy().getServerInfo(serverName);
         }
         return server;
     }
@@ -166,66 +187,147 @@ public final class RedisBungee extends Plugin implements Listener {
         long time = -1L;
         if (getProxy().getPlayer(name) != null) return 0;
         if (pool != null) {
-            Jedis tmpRsc = pool.getResource();
+            String online = tracker.getPlayerData(readPool, name).get("online");
+            if (online == null) return time;
             try {
-                if (tmpRsc.hexists("player:" + name, "online"))
-                    try {
-                        time = Long.valueOf(tmpRsc.hget("player:" + name, "online"));
-                    } catch (NumberFormatException e) {
-                        getLogger().info("I found a funny number for when " + name + " was last online!");
-                        boolean found = false;
-                        for (String proxyId : serverIds) {
-                            if (proxyId.equals(configuration.getString("server-id"))) continue;
-                            if (tmpRsc.sismember("server:" + proxyId + ":usersOnline", name)) {
-                                found = true;
-                                break;
-                            }
-                        }
-                        String value = "0";
-                        if (!found) {
-                            value = String.valueOf(System.currentTimeMillis());
-                            getLogger().info(name + " isn't online. Setting to current time.");
-                        } else {
-                            getLogger().info(name + " is online. Setting to 0. Please check your BungeeCord instances.");
-                            getLogger().info("If they are working properly, and this error does not resolve in a few minutes, please let Tux know!");
-                        }
-                        tmpRsc.hset("player:" + name, "online", value);
+                return Long.valueOf(online);
+            } catch (NumberFormatException ignored) {
+            }
+            Jedis tmpRsc = readPool.getResource();
+            try {
+                getLogger().info("I found a funny number for when " + name + " was last online!");
+                boolean found = false;
+                for (String proxyId : serverIds) {
+                    if (proxyId.equals(keys.serverId)) continue;
+                    if (tmpRsc.sismember(RedisKeys.usersOnline(proxyId), name)) {
+                        found = true;
+                        break;
                     }
+                }
+                String value = "0";
+                if (!found) {
+                    value = String.valueOf(System.currentTimeMillis());
+                    getLogger().info(name + " isn't online. Setting to current time.");
+                } else {
+                    getLogger().info(name + " is online. Setting to 0. Please check your BungeeCord instances.");
+                    getLogger().info("If they are working properly, and this error does not resolve in a few minutes, please let Tux know!");
+                }
+                tmpRsc.hset(RedisKeys.player(name), "online", value);
+                tracker.invalidate(name);
             } catch (JedisConnectionException e) {
                 // Redis server has disappeared!
                 getLogger().log(Level.SEVERE, "Unable to get connection from pool - did your Redis server go away?", e);
-                pool.returnBrokenResource(tmpRsc);
+                readPool.returnBrokenResource(tmpRsc);
+                tmpRsc = null;
                 throw new RuntimeException("Unable to get last time online for " + name, e);
             } finally {
-                pool.returnResource(tmpRsc);
+                if (tmpRsc != null)
+                    readPool.returnResource(tmpRsc);
             }
         }
         return time;
     }
 
+    final Set<String> getPlayersOnIp(@NonNull InetAddress ip) {
+        if (pool == null) {
+            ImmutableSet.Builder<String> setBuilder = ImmutableSet.builder();
+            for (ProxiedPlayer pp : getProxy().getPlayers())
+                if (pp.getAddress().getAddress().equals(ip))
+                    setBuilder = setBuilder.add(pp.getName());
+            return setBuilder.build();
+        }
+        Jedis rsc = readPool.getResource();
+        try {
+            return ImmutableSet.copyOf(rsc.smembers(RedisKeys.ip(ip.getHostAddress())));
+        } catch (JedisConnectionException e) {
+            // Redis server has disappeared!
+            getLogger().log(Level.SEVERE, "Unable to get connection from pool - did your Redis server go away?", e);
+            readPool.returnBrokenResource(rsc);
+            rsc = null;
+            throw new RuntimeException("Unable to get players on IP " + ip, e);
+        } finally {
+            if (rsc != null)
+                readPool.returnResource(rsc);
+        }
+    }
+
+    final List<PopulationSample> getPopulationHistory(String proxyId, String server, @NonNull PopulationHistory.Resolution resolution) {
+        checkArgument(proxyId == null || keys.allProxies.contains(proxyId), "proxyId is invalid");
+        if (pool == null)
+            return Collections.emptyList();
+        Jedis rsc = readPool.getResource();
+        try {
+            return PopulationHistory.fetch(rsc, proxyId == null ? keys.allProxies : Collections.singletonList(proxyId), server, resolution);
+        } catch (JedisConnectionException e) {
+            // Redis server has disappeared!
+            getLogger().log(Level.SEVERE, "Unable to get connection from pool - did your Redis server go away?", e);
+            readPool.returnBrokenResource(rsc);
+            rsc = null;
+            throw new RuntimeException("Unable to get population history", e);
+        } finally {
+            if (rsc != null)
+                readPool.returnResource(rsc);
+        }
+    }
+
     final InetAddress getIpAddress(@NonNull String name) {
         if (getProxy().getPlayer(name) != null)
             return getProxy().getPlayer(name).getAddress().getAddress();
         InetAddress ia = null;
         if (pool != null) {
-            Jedis tmpRsc = pool.getResource();
-            try {
-                if (tmpRsc.hexists("player:" + name, "ip"))
-                    ia = InetAddress.getByName(tmpRsc.hget("player:" + name, "ip"));
-            } catch (JedisConnectionException e) {
-                // Redis server has disappeared!
-                getLogger().log(Level.SEVERE, "Unable to get connection from pool - did your Redis server go away?", e);
-                pool.returnBrokenResource(tmpRsc);
-                throw new RuntimeException("Unable to fetch IP address for " + name, e);
-            } catch (UnknownHostException ignored) {
-                // Best to just return null
-            } finally {
-                pool.returnResource(tmpRsc);
-            }
+            String ip = tracker.getPlayerData(readPool, name).get("ip");
+            if (ip != null)
+                try {
+                    ia = InetAddress.getByName(ip);
+                } catch (UnknownHostException ignored) {
+                    // Best to just return null
+                }
         }
         return ia;
     }
 
+    final CacheStats getPlayerCacheStats() {
+        return tracker.getCacheStats();
+    }
+
+    private void invalidateCounts() {
+        if (configuration.getBoolean("refresh-counts-on-change", false)) {
+            pluginQueryCache.invalidateNetworkTotals();
+        }
+    }
+
+    private void handlePlayerChange(String message) {
+        String[] parts = tracker.onChange(message);
+        if (parts == null)
+            return;
+        final Event event;
+        switch (parts[0]) {
+            case "join":
+                event = new PlayerJoinedNetworkEvent(parts[2], parts[1]);
+                invalidateCounts();
+                break;
+            case "leave":
+                event = new PlayerLeftNetworkEvent(parts[2], parts[1]);
+                invalidateCounts();
+                break;
+            case "serverchange":
+                if (parts.length < 4)
+                    return;
+                event = new PlayerChangedServerNetworkEvent(parts[2], parts[1], parts[3]);
+                break;
+            default:
+                return;
+        }
+        // Don't hold up the PubSub listener with other plugins' event handlers, but fire events one at a time and in
+        // the order they were published, so that nobody sees a player leave before they joined.
+        eventExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                getProxy().getPluginManager().callEvent(event);
+            }
+        });
+    }
+
     final void sendProxyCommand(@NonNull String proxyId, @NonNull String command) {
         checkArgument(serverIds.contains(proxyId) || proxyId.equals("allservers"), "proxyId is invalid");
         Jedis jedis = pool.getResource();
@@ -235,9 +337,11 @@ public final class RedisBungee extends Plugin implements Listener {
             // Redis server has disappeared!
             getLogger().log(Level.SEVERE, "Unable to get connection from pool - did your Redis server go away?", e);
             pool.returnBrokenResource(jedis);
+            jedis = null;
             throw new RuntimeException("Unable to publish command", e);
         } finally {
-            pool.returnResource(jedis);
+            if (jedis != null)
+                pool.returnResource(jedis);
         }
     }
 
@@ -251,85 +355,146 @@ public final class RedisBungee extends Plugin implements Listener {
             throw new RuntimeException("Unable to connect to your Redis server!", e);
         }
         if (pool != null) {
-            Jedis tmpRsc = pool.getResource();
+            Jedis tmpRsc = maintenancePool.getResource();
             try {
-                tmpRsc.set("server:" + configuration.getString("server-id") + ":playerCount", "0"); // reset
-                if (tmpRsc.scard("server:" + configuration.getString("server-id") + ":usersOnline") > 0) {
-                    for (String member : tmpRsc.smembers("server:" + configuration.getString("server-id") + ":usersOnline")) {
+                tmpRsc.set(keys.playerCount, "0"); // reset
+                if (tmpRsc.scard(keys.usersOnline) > 0) {
+                    for (String member : tmpRsc.smembers(keys.usersOnline)) {
                         // Are they simply on a different proxy?
                         boolean found = false;
                         for (String proxyId : serverIds) {
-                            if (proxyId.equals(configuration.getString("server-id"))) continue;
-                            if (tmpRsc.sismember("server:" + proxyId + ":usersOnline", member)) {
+                            if (proxyId.equals(keys.serverId)) continue;
+                            if (tmpRsc.sismember(RedisKeys.usersOnline(proxyId), member)) {
                                 found = true;
                                 break;
                             }
                         }
                         if (!found)
-                            cleanUpPlayer(member, tmpRsc);
+                            tracker.evict(tmpRsc, member);
                         else
-                            tmpRsc.srem("server:" + configuration.getString("server-id") + ":usersOnline", member);
+                            tmpRsc.srem(keys.usersOnline, member);
                     }
                 }
+            } catch (JedisConnectionException e) {
+                maintenancePool.returnBrokenResource(tmpRsc);
+                tmpRsc = null;
+                throw new RuntimeException("Unable to clean up players left over from the last run!", e);
             } finally {
-                pool.returnResource(tmpRsc);
+                if (tmpRsc != null)
+                    maintenancePool.returnResource(tmpRsc);
             }
-            getProxy().getScheduler().schedule(this, new Runnable() {
+            // Logins and logouts keep our count up to date as they happen, so this only has to correct any drift.
+            int resync = configuration.getInt("player-count-resync-seconds", 60);
+            getProxy().getScheduler().schedule(this, redisExecutor.offload(new Runnable() {
                 @Override
                 public void run() {
-                    Jedis rsc = pool.getResource();
+                    Jedis rsc = maintenancePool.getResource();
                     try {
-                        rsc.set("server:" + configuration.getString("server-id") + ":playerCount", String.valueOf(getProxy().getOnlineCount()));
+                        rsc.set(keys.playerCount, String.valueOf(getProxy().getOnlineCount()));
                     } catch (JedisConnectionException e) {
                         // Redis server has disappeared!
                         getLogger().log(Level.SEVERE, "Unable to update proxy counts - did your Redis server go away?", e);
-                        pool.returnBrokenResource(rsc);
+                        maintenancePool.returnBrokenResource(rsc);
+                        rsc = null;
                     } finally {
-                        pool.returnResource(rsc);
+                        if (rsc != null)
+                            maintenancePool.returnResource(rsc);
                     }
                 }
-            }, 1, 3, TimeUnit.SECONDS);
-            getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.GlistCommand());
+            }), resync, resync, TimeUnit.SECONDS);
+            getProxy().getScheduler().schedule(this, redisExecutor.offload(new Runnable() {
+                @Override
+                public void run() {
+                    long now = System.currentTimeMillis();
+                    Map<String, Integer> serverCounts = new HashMap<>();
+                    for (ServerInfo si : getProxy().getServers().values())
+                        serverCounts.put(si.getName(), si.getPlayers().size());
+                    Jedis rsc = maintenancePool.getResource();
+                    try {
+                        populationHistory.record(rsc, keys.serverId, getProxy().getOnlineCount(), serverCounts, now);
+                    } catch (JedisConnectionException e) {
+                        // Redis server has disappeared!
+                        getLogger().log(Level.SEVERE, "Unable to record population history - did your Redis server go away?", e);
+                        maintenancePool.returnBrokenResource(rsc);
+                        rsc = null;
+                    } finally {
+                        if (rsc != null)
+                            maintenancePool.returnResource(rsc);
+                    }
+                }
+            }), 1, 10, TimeUnit.SECONDS);
+            RedisBungeeCommands.GlistCommand glist = new RedisBungeeCommands.GlistCommand(this);
+            getProxy().getPluginManager().registerCommand(this, glist);
             getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.FindCommand());
             getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.LastSeenCommand());
             getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.IpCommand());
+            getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.PlayersOnIpCommand());
+            getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.PopulationCommand());
             getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.SendToAll());
             getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.ServerId());
             getProxy().getPluginManager().registerListener(this, this);
             api = new RedisBungeeAPI(this);
+            glist.refresh();
+            queryManager = new ProxyQueryManager(readPool, redisExecutor, keys.serverId, getLogger());
+            queryManager.registerHandler("playercount", new ProxyQueryHandler() {
+                @Override
+                public String handle(String argument) {
+                    return String.valueOf(getProxy().getOnlineCount());
+                }
+            });
+            queryManager.registerHandler("players", new ProxyQueryHandler() {
+                @Override
+                public String handle(String argument) {
+                    if (argument.isEmpty())
+                        return Joiner.on(',').join(getLocalPlayers());
+                    ServerInfo si = getProxy().getServerInfo(argument);
+                    if (si == null)
+                        return "";
+                    List<String> names = new ArrayList<>();
+                    for (ProxiedPlayer pp : si.getPlayers())
+                        names.add(pp.getName());
+                    return Joiner.on(',').join(names);
+                }
+            });
             psl = new PubSubListener();
             new Thread(psl, "RedisBungee PubSub Listener").start();
-            getProxy().getScheduler().schedule(this, new Runnable() {
+            getProxy().getScheduler().schedule(this, redisExecutor.offload(new Runnable() {
                 @Override
                 public void run() {
-                    Jedis tmpRsc = pool.getResource();
+                    Jedis tmpRsc = maintenancePool.getResource();
                     try {
                         Set<String> players = getLocalPlayers();
-                        for (String member : tmpRsc.smembers("server:" + configuration.getString("server-id") + ":usersOnline"))
+                        for (String member : tmpRsc.smembers(keys.usersOnline))
                             if (!players.contains(member)) {
                                 // Are they simply on a different proxy?
                                 boolean found = false;
                                 for (String proxyId : serverIds) {
-                                    if (proxyId.equals(configuration.getString("server-id"))) continue;
-                                    if (tmpRsc.sismember("server:" + proxyId + ":usersOnline", member)) {
+                                    if (proxyId.equals(keys.serverId)) continue;
+                                    if (tmpRsc.sismember(RedisKeys.usersOnline(proxyId), member)) {
                                         // Just clean up the set.
                                         found = true;
                                         break;
                                     }
                                 }
                                 if (!found) {
-                                    cleanUpPlayer(member, tmpRsc);
+                                    tracker.evict(tmpRsc, member);
                                     getLogger().warning("Player found in set that was not found locally and globally: " + member);
                                 } else {
-                                    tmpRsc.srem("server:" + configuration.getString("server-id") + ":usersOnline", member);
+                                    tmpRsc.srem(keys.usersOnline, member);
                                     getLogger().warning("Player found in set that was not found locally, but is on another proxy: " + member);
                                 }
                             }
+                    } catch (JedisConnectionException e) {
+                        // Redis server has disappeared!
+                        getLogger().log(Level.SEVERE, "Unable to reconcile online players - did your Redis server go away?", e);
+                        maintenancePool.returnBrokenResource(tmpRsc);
+                        tmpRsc = null;
                     } finally {
-                        pool.returnResource(tmpRsc);
+                        if (tmpRsc != null)
+                            maintenancePool.returnResource(tmpRsc);
                     }
                 }
-            }, 1, 3, TimeUnit.MINUTES);
+            }), 1, 3, TimeUnit.MINUTES);
         }
         getProxy().registerChannel("RedisBungee");
     }
@@ -340,17 +505,34 @@ public final class RedisBungee extends Plugin implements Listener {
             // Poison the PubSub listener
             psl.poison();
             getProxy().getScheduler().cancel(this);
-            Jedis tmpRsc = pool.getResource();
+            redisExecutor.shutdown();
+            eventExecutor.shutdown();
             try {
-                tmpRsc.set("server:" + configuration.getString("server-id") + ":playerCount", "0"); // reset
-                if (tmpRsc.scard("server:" + configuration.getString("server-id") + ":usersOnline") > 0) {
-                    for (String member : tmpRsc.smembers("server:" + configuration.getString("server-id") + ":usersOnline"))
-                        cleanUpPlayer(member, tmpRsc);
+                // Work that was already handed off may still be using the pools we are about to destroy.
+                if (!redisExecutor.awaitTermination(5, TimeUnit.SECONDS))
+                    getLogger().warning("Background Redis work did not finish in time, and may fail as RedisBungee shuts down.");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Jedis tmpRsc = maintenancePool.getResource();
+            try {
+                tmpRsc.set(keys.playerCount, "0"); // reset
+                if (tmpRsc.scard(keys.usersOnline) > 0) {
+                    for (String member : tmpRsc.smembers(keys.usersOnline))
+                        tracker.cleanUp(tmpRsc, member);
                 }
+            } catch (JedisConnectionException e) {
+                // Redis server has disappeared!
+                getLogger().log(Level.SEVERE, "Unable to clean up online players - did your Redis server go away?", e);
+                maintenancePool.returnBrokenResource(tmpRsc);
+                tmpRsc = null;
             } finally {
-                pool.returnResource(tmpRsc);
+                if (tmpRsc != null)
+                    maintenancePool.returnResource(tmpRsc);
             }
             pool.destroy();
+            readPool.destroy();
+            maintenancePool.destroy();
         }
     }
 
@@ -371,9 +553,9 @@ public final class RedisBungee extends Plugin implements Listener {
 
         configuration = ConfigurationProvider.getProvider(YamlConfiguration.class).load(file);
 
-        String redisServer = configuration.getString("redis-server", "localhost");
-        int redisPort = configuration.getInt("redis-port", 6379);
-        String redisPassword = configuration.getString("redis-password");
+        redisServer = configuration.getString("redis-server", "localhost");
+        redisPort = configuration.getInt("redis-port", 6379);
+        redisPassword = configuration.getString("redis-password");
 
         if (redisPassword != null && (redisPassword.equals("") || redisPassword.equals("none"))) {
             redisPassword = null;
@@ -388,11 +570,53 @@ public final class RedisBungee extends Plugin implements Listener {
             throw new RuntimeException("linked-servers is not specified in the configuration or is empty");
         }
 
+        // Server IDs are separated by colons in our PubSub messages.
+        if (configuration.getString("server-id").contains(":")) {
+            throw new RuntimeException("server-id may not contain ':'");
+        }
+
+        for (String linked : configuration.getStringList("linked-servers")) {
+            if (linked.contains(":")) {
+                throw new RuntimeException("linked-servers may not contain a server ID with ':' (" + linked + ")");
+            }
+        }
+
         serverIds = ImmutableList.copyOf(configuration.getStringList("linked-servers"));
+        keys = new RedisKeys(configuration.getString("server-id"), serverIds);
+
+        tracker = new PlayerTracker(keys, getLogger(), configuration.getInt("player-cache-size", 1000),
+                configuration.getInt("player-cache-ttl", 30));
+
+        admissionControl = new AdmissionControl(configuration.getInt("max-concurrent-logins", 16),
+                configuration.getInt("max-concurrent-pings", 8),
+                configuration.getInt("max-concurrent-plugin-messages", 8),
+                configuration.getInt("login-permit-timeout-ms", 1000));
+
+        redisExecutor = new RedisExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                getProxy().getScheduler().runAsync(RedisBungee.this, command);
+            }
+        }, configuration.getBoolean("virtual-threads", false), configuration.getInt("virtual-thread-concurrency", 64));
+        if (configuration.getBoolean("virtual-threads", false) && !redisExecutor.isVirtual())
+            getLogger().warning("virtual-threads is enabled, but this JVM does not support them. Using platform threads.");
+
+        eventExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("RedisBungee Network Events").setDaemon(true).build());
+
+        pluginQueryCache = new PluginQueryCache(configuration.getInt("plugin-message-cache-ms", 500), new PluginQueryCache.Loader() {
+            @Override
+            public byte[] load(String subchannel, String argument) {
+                return answerPluginQuery(subchannel, argument);
+            }
+        });
 
         if (redisServer != null) {
             if (!redisServer.equals("")) {
-                pool = new JedisPool(new JedisPoolConfig(), redisServer, redisPort, 0, redisPassword);
+                // Logins, bulk reads and background tasks each get their own pool so that they can't starve each other.
+                pool = createPool("login", 8);
+                readPool = createPool("read", 8);
+                maintenancePool = createPool("maintenance", 2);
                 // Test the connection
                 Jedis rsc = null;
                 try {
@@ -403,6 +627,8 @@ public final class RedisBungee extends Plugin implements Listener {
                     if (rsc != null)
                         pool.returnBrokenResource(rsc);
                     pool.destroy();
+                    readPool.destroy();
+                    maintenancePool.destroy();
                     pool = null;
                     rsc = null;
                     throw e;
@@ -417,20 +643,60 @@ public final class RedisBungee extends Plugin implements Listener {
         }
     }
 
+    private MeteredJedisPool createPool(String name, int defaultSize) {
+        JedisPoolConfig config = new JedisPoolConfig();
+        config.setMaxActive(configuration.getInt(name + "-pool-size", defaultSize));
+        config.setMaxWait(configuration.getInt(name + "-pool-max-wait-ms", 2000));
+        return new MeteredJedisPool(name, config, redisServer, redisPort,
+                configuration.getInt(name + "-pool-timeout-ms", 0), redisPassword);
+    }
+
+    final List<PoolStats> getPoolStats() {
+        return ImmutableList.of(pool.getStats(), readPool.getStats(), maintenancePool.getStats());
+    }
+
     @EventHandler
-    public void onPreLogin(PreLoginEvent event) {
+    public void onPreLogin(final PreLoginEvent event) {
         if (pool != null) {
-            Jedis rsc = pool.getResource();
-            try {
-                for (String server : serverIds) {
-                    if (rsc.sismember("server:" + server + ":usersOnline", event.getConnection().getName())) {
-                        event.setCancelled(true);
-                        event.setCancelReason("You are already logged on to this server.");
+            // BungeeCord holds the login until we complete our intent, so the wait for a permit and the Redis check
+            // happen off the I/O thread.
+            event.registerIntent(this);
+            redisExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        checkDuplicateLogin(event);
+                    } finally {
+                        event.completeIntent(RedisBungee.this);
                     }
                 }
-            } finally {
-                pool.returnResource(rsc);
+            });
+        }
+    }
+
+    private void checkDuplicateLogin(PreLoginEvent event) {
+        if (!admissionControl.tryAcquire(AdmissionControl.WorkClass.LOGIN)) {
+            event.setCancelled(true);
+            event.setCancelReason("This server is busy. Please try again in a moment.");
+            return;
+        }
+        Jedis rsc = null;
+        try {
+            rsc = pool.getResource();
+            if (tracker.isOnline(rsc, event.getConnection().getName())) {
+                event.setCancelled(true);
+                event.setCancelReason("You are already logged on to this server.");
             }
+        } catch (JedisConnectionException e) {
+            // Redis server has disappeared!
+            getLogger().log(Level.SEVERE, "Unable to check for duplicate logins - did your Redis server go away?", e);
+            if (rsc != null)
+                pool.returnBrokenResource(rsc);
+            rsc = null;
+        } finally {
+            if (rsc != null)
+                pool.returnResource(rsc);
+            admissionControl.release(AdmissionControl.WorkClass.LOGIN);
         }
     }
 
@@ -439,11 +705,15 @@ public final class RedisBungee extends Plugin implements Listener {
         if (pool != null) {
             Jedis rsc = pool.getResource();
             try {
-                rsc.sadd("server:" + configuration.getString("server-id", "") + ":usersOnline", event.getPlayer().getName());
-                rsc.hset("player:" + event.getPlayer().getName(), "online", "0");
-                rsc.hset("player:" + event.getPlayer().getName(), "ip", event.getPlayer().getAddress().getAddress().getHostAddress());
+                tracker.join(rsc, event.getPlayer().getName(), event.getPlayer().getAddress().getAddress().getHostAddress());
+            } catch (JedisConnectionException e) {
+                // Redis server has disappeared!
+                getLogger().log(Level.SEVERE, "Unable to record player login - did your Redis server go away?", e);
+                pool.returnBrokenResource(rsc);
+                rsc = null;
             } finally {
-                pool.returnResource(rsc);
+                if (rsc != null)
+                    pool.returnResource(rsc);
             }
         }
         // I used to have a task that eagerly waited for the user to be connected.
@@ -456,10 +726,15 @@ public final class RedisBungee extends Plugin implements Listener {
         if (pool != null) {
             Jedis rsc = pool.getResource();
             try {
-                rsc.hset("player:" + event.getPlayer().getName(), "online", String.valueOf(System.currentTimeMillis()));
-                cleanUpPlayer(event.getPlayer().getName(), rsc);
+                tracker.leave(rsc, event.getPlayer().getName());
+            } catch (JedisConnectionException e) {
+                // Redis server has disappeared!
+                getLogger().log(Level.SEVERE, "Unable to record player logout - did your Redis server go away?", e);
+                pool.returnBrokenResource(rsc);
+                rsc = null;
             } finally {
-                pool.returnResource(rsc);
+                if (rsc != null)
+                    pool.returnResource(rsc);
             }
         }
     }
@@ -469,9 +744,15 @@ public final class RedisBungee extends Plugin implements Listener {
         if (pool != null) {
             Jedis rsc = pool.getResource();
             try {
-                rsc.hset("player:" + event.getPlayer().getName(), "server", event.getServer().getInfo().getName());
+                tracker.changeServer(rsc, event.getPlayer().getName(), event.getServer().getInfo().getName());
+            } catch (JedisConnectionException e) {
+                // Redis server has disappeared!
+                getLogger().log(Level.SEVERE, "Unable to record server change - did your Redis server go away?", e);
+                pool.returnBrokenResource(rsc);
+                rsc = null;
             } finally {
-                pool.returnResource(rsc);
+                if (rsc != null)
+                    pool.returnResource(rsc);
             }
         }
     }
@@ -480,17 +761,28 @@ public final class RedisBungee extends Plugin implements Listener {
     public void onPing(ProxyPingEvent event) {
         ServerPing old = event.getResponse();
         ServerPing reply = new ServerPing();
-        if (configuration.getBoolean("player-list-in-ping", false)) {
-            Set<String> players = getPlayers();
-            ServerPing.PlayerInfo[] info = new ServerPing.PlayerInfo[players.size()];
-            int idx = 0;
-            for (String player : players) {
-                info[idx] = new ServerPing.PlayerInfo(player, "");
-                idx++;
-            }
-            reply.setPlayers(new ServerPing.Players(old.getPlayers().getMax(), players.size(), info));
+        if (pool != null && !admissionControl.tryAcquire(AdmissionControl.WorkClass.PING)) {
+            // Too many pings are already waiting on Redis, so make do with the last count we saw.
+            reply.setPlayers(new ServerPing.Players(old.getPlayers().getMax(),
+                    Math.max(lastCount, getProxy().getOnlineCount()), null));
         } else {
-            reply.setPlayers(new ServerPing.Players(old.getPlayers().getMax(), getCount(), null));
+            try {
+                if (configuration.getBoolean("player-list-in-ping", false)) {
+                    Set<String> players = getPlayers();
+                    ServerPing.PlayerInfo[] info = new ServerPing.PlayerInfo[players.size()];
+                    int idx = 0;
+                    for (String player : players) {
+                        info[idx] = new ServerPing.PlayerInfo(player, "");
+                        idx++;
+                    }
+                    reply.setPlayers(new ServerPing.Players(old.getPlayers().getMax(), players.size(), info));
+                } else {
+                    reply.setPlayers(new ServerPing.Players(old.getPlayers().getMax(), getCount(), null));
+                }
+            } finally {
+                if (pool != null)
+                    admissionControl.release(AdmissionControl.WorkClass.PING);
+            }
         }
         reply.setDescription(old.getDescription());
         reply.setFavicon(old.getFavicon());
@@ -504,59 +796,94 @@ public final class RedisBungee extends Plugin implements Listener {
             ByteArrayDataInput in = ByteStreams.newDataInput(event.getData());
 
             String subchannel = in.readUTF();
-            ByteArrayDataOutput out = ByteStreams.newDataOutput();
-            String type;
-
-            switch (subchannel) {
-                case "PlayerList":
-                    out.writeUTF("Players");
-                    Set<String> source = Collections.emptySet();
-                    type = in.readUTF();
-                    if (type.equals("ALL")) {
-                        out.writeUTF("ALL");
-                        source = getPlayers();
-                    } else {
-                        try {
-                            source = getPlayersOnServer(type);
-                        } catch (IllegalArgumentException ignored) {
-                        }
-                    }
-                    out.writeUTF(Joiner.on(',').join(source));
-                    break;
-                case "PlayerCount":
-                    out.writeUTF("PlayerCount");
-                    type = in.readUTF();
-                    if (type.equals("ALL")) {
-                        out.writeUTF("ALL");
-                        out.writeInt(getCount());
-                    } else {
-                        out.writeUTF(type);
-                        try {
-                            out.writeInt(getPlayersOnServer(type).size());
-                        } catch (IllegalArgumentException e) {
-                            out.writeInt(0);
-                        }
-                    }
-                    out.writeInt(getCount());
-                    break;
-                case "LastOnline":
-                    String user = in.readUTF();
-                    out.writeUTF("LastOnline");
-                    out.writeUTF(user);
-                    out.writeLong(getLastOnline(user));
-                    break;
-                default:
-                    break;
+            byte[] response;
+
+            if (pool != null && !admissionControl.tryAcquire(AdmissionControl.WorkClass.PLUGIN_MESSAGE)) {
+                // Too many plugin messages are already waiting on Redis. Answer from the cache if we can, otherwise
+                // don't answer at all.
+                if (!subchannel.equals("PlayerList") && !subchannel.equals("PlayerCount"))
+                    return;
+                response = pluginQueryCache.getIfPresent(subchannel, in.readUTF());
+                if (response != null)
+                    ((Server) event.getSender()).sendData("RedisBungee", response);
+                return;
+            }
+
+            try {
+                switch (subchannel) {
+                    case "PlayerList":
+                    case "PlayerCount":
+                        // Every server asks for these on a timer, so share the answer between them.
+                        response = pluginQueryCache.get(subchannel, in.readUTF());
+                        break;
+                    case "LastOnline":
+                        String user = in.readUTF();
+                        ByteArrayDataOutput out = ByteStreams.newDataOutput();
+                        out.writeUTF("LastOnline");
+                        out.writeUTF(user);
+                        out.writeLong(getLastOnline(user));
+                        response = out.toByteArray();
+                        break;
+                    default:
+                        response = new byte[0];
+                        break;
+                }
+            } finally {
+                if (pool != null)
+                    admissionControl.release(AdmissionControl.WorkClass.PLUGIN_MESSAGE);
             }
 
-            ((Server) event.getSender()).sendData("RedisBungee", out.toByteArray());
+            ((Server) event.getSender()).sendData("RedisBungee", response);
+        }
+    }
+
+    private byte[] answerPluginQuery(String subchannel, String type) {
+        ByteArrayDataOutput out = ByteStreams.newDataOutput();
+        switch (subchannel) {
+            case "PlayerList":
+                if (type.equals("ALL")) {
+                    // Drop anyone the iterator returns twice.
+                    return PluginQueryCache.playerList(true, ImmutableSet.copyOf(iteratePlayers()));
+                }
+                Set<String> source = Collections.emptySet();
+                try {
+                    source = getPlayersOnServer(type);
+                } catch (IllegalArgumentException ignored) {
+                }
+                return PluginQueryCache.playerList(false, source);
+            case "PlayerCount":
+                out.writeUTF("PlayerCount");
+                if (type.equals("ALL")) {
+                    out.writeUTF("ALL");
+                    out.writeInt(getCount());
+                } else {
+                    out.writeUTF(type);
+                    try {
+                        out.writeInt(getPlayersOnServer(type).size());
+                    } catch (IllegalArgumentException e) {
+                        out.writeInt(0);
+                    }
+                }
+                out.writeInt(getCount());
+                break;
         }
+        return out.toByteArray();
+    }
+
+    final ProxyQueryManager getQueryManager() {
+        return queryManager;
+    }
+
+    final RedisExecutor getRedisExecutor() {
+        return redisExecutor;
     }
 
-    private void cleanUpPlayer(String player, Jedis rsc) {
-        rsc.srem("server:" + configuration.getString("server-id") + ":usersOnline", player);
-        rsc.hdel("player:" + player, "server");
-        rsc.hdel("player:" + player, "ip");
+    final AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
+    final CacheStats getPluginQueryStats() {
+        return pluginQueryCache.stats();
     }
 
     private class PubSubListener implements Runnable {
@@ -568,23 +895,47 @@ public final class RedisBungee extends Plugin implements Listener {
 
         @Override
         public void run() {
+            // The subscription holds its connection forever, so it gets its own instead of one from a pool.
+            rsc = new Jedis(redisServer, redisPort, 0);
             try {
-                rsc = pool.getResource();
+                if (redisPassword != null)
+                    rsc.auth(redisPassword);
                 jpsh = new JedisPubSubHandler();
-                rsc.subscribe(jpsh, "redisbungee-" + configuration.getString("server-id"), "redisbungee-allservers");
+                rsc.subscribe(jpsh, "redisbungee-" + keys.serverId, "redisbungee-allservers",
+                        "redisbungee-data", "redisbungee-query", "redisbungee-reply-" + keys.serverId);
             } catch (JedisException | ClassCastException ignored) {
+            } finally {
+                try {
+                    rsc.disconnect();
+                } catch (JedisException ignored) {
+                }
             }
         }
 
         public void poison() {
             jpsh.unsubscribe();
-            pool.returnResource(rsc);
+            if (jpsh.keyspaceSubscribed)
+                jpsh.punsubscribe();
         }
     }
 
     private class JedisPubSubHandler extends JedisPubSub {
+        private volatile boolean keyspaceSubscribed = false;
+
         @Override
         public void onMessage(String s, String s2) {
+            if (s.equals("redisbungee-data")) {
+                handlePlayerChange(s2);
+                return;
+            }
+            if (s.equals("redisbungee-query")) {
+                queryManager.onQuery(s2);
+                return;
+            }
+            if (s.startsWith("redisbungee-reply-")) {
+                queryManager.onReply(s2);
+                return;
+            }
             String cmd;
             if (s2.startsWith("/")) {
                 cmd = s2.substring(1);
@@ -598,10 +949,19 @@ public final class RedisBungee extends Plugin implements Listener {
 
         @Override
         public void onPMessage(String s, String s2, String s3) {
+            // Keyspace notification: __keyspace@<db>__:player:<name>
+            int idx = s2.indexOf("__:player:");
+            if (idx != -1)
+                tracker.invalidate(s2.substring(idx + "__:player:".length()));
         }
 
         @Override
         public void onSubscribe(String s, int i) {
+            // Requires notify-keyspace-events to include "Kh" on the Redis server.
+            if (!keyspaceSubscribed && configuration.getBoolean("player-cache-keyspace-notifications", false)) {
+                keyspaceSubscribed = true;
+                psubscribe("__keyspace@*__:player:*");
+            }
         }
 
         @Override
@@ -6,14 +6,19 @@
  */
 package com.imaginarycode.minecraft.redisbungee;
 
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.Multimap;
 import lombok.NonNull;
 import net.md_5.bungee.api.config.ServerInfo;
 
 import java.net.InetAddress;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * This class exposes some internal RedisBungee functions. You obtain an instance of this object by invoking {@link RedisBungee#getApi()}.
  *
@@ -69,6 +74,19 @@ public class RedisBungeeAPI {
         return plugin.getPlayers();
     }
 
+    /**
+     * Iterate over all players on this network without building a full list in memory. Players on other proxies are
+     * fetched a page at a time as the iterator advances, so callers that stop early avoid the rest of the work.
+     * <p/>
+     * Unlike {@link #getPlayersOnline()}, a player who is switching proxies may be returned twice.
+     *
+     * @return an iterator over all players found
+     * @since 0.2.6
+     */
+    public final Iterator<String> iteratePlayersOnline() {
+        return plugin.iteratePlayers();
+    }
+
     /**
      * Get a full list of players on all servers.
      * @return a immutable Multimap with all players found on this server
@@ -97,6 +115,22 @@ public class RedisBungeeAPI {
         return getLastOnline(player) == 0;
     }
 
+    /**
+     * Get the recorded history of player counts, oldest first. Each proxy records its own count, and the count on each
+     * of its servers, every 10 seconds.
+     * <p/>
+     * When more than one proxy is included, each sample's peak is the sum of each proxy's peak for that bucket.
+     *
+     * @param proxyId a proxy ID, or null for all proxies
+     * @param server a server name, or null for every server
+     * @param resolution how finely to report history; finer resolutions cover a shorter period
+     * @return an immutable List of samples
+     * @since 0.2.6
+     */
+    public final List<PopulationSample> getPopulationHistory(String proxyId, String server, @NonNull PopulationHistory.Resolution resolution) {
+        return plugin.getPopulationHistory(proxyId, server, resolution);
+    }
+
     /**
      * Get the {@link java.net.InetAddress} associated with this player.
      *
@@ -107,6 +141,18 @@ public class RedisBungeeAPI {
         return plugin.getIpAddress(player);
     }
 
+    /**
+     * Get all players currently connected to this network from the given {@link java.net.InetAddress}. This does not
+     * depend on how many players are online.
+     *
+     * @param ip an IP address
+     * @return an immutable Set of player names connected from this address
+     * @since 0.2.6
+     */
+    public final Set<String> getPlayersOnIp(@NonNull InetAddress ip) {
+        return plugin.getPlayersOnIp(ip);
+    }
+
     /**
      * Sends a proxy command to all proxies.
      * @param command the command to send and execute
@@ -129,6 +175,54 @@ public class RedisBungeeAPI {
         plugin.sendProxyCommand(proxyId, command);
     }
 
+    /**
+     * Send a query to every proxy, including this one, and wait for their replies. Each proxy answers from its own
+     * state using the {@link ProxyQueryHandler} registered for the query type. If some proxies don't reply before the
+     * timeout, only the replies received so far are returned.
+     * <p/>
+     * Two query types are built in: <code>playercount</code>, which replies with the number of players on the proxy,
+     * and <code>players</code>, which replies with a comma-separated list of players on the proxy, or only those on the
+     * server named by the argument.
+     * <p/>
+     * <strong>This blocks until every proxy replies or the timeout passes, so call it from a scheduled task or another
+     * thread of your own, not from an event handler.</strong>
+     *
+     * @param type the query type
+     * @param argument an argument for the query; may be empty
+     * @param timeoutMillis how long to wait for replies, in milliseconds
+     * @return an immutable Map of proxy IDs to their replies
+     * @throws IllegalStateException if called from one of BungeeCord's network threads
+     * @since 0.2.6
+     */
+    public final Map<String, ProxyQueryReply> queryProxies(@NonNull String type, @NonNull String argument, long timeoutMillis) {
+        checkArgument(!type.contains(":"), "type may not contain ':'");
+        int proxies = getAllServers().contains(getServerId()) ? getAllServers().size() : getAllServers().size() + 1;
+        return plugin.getQueryManager().query(type, argument, proxies, timeoutMillis);
+    }
+
+    /**
+     * Register a handler that answers queries of the given type sent by {@link #queryProxies(String, String, long)}.
+     * Registering a handler for a type that already has one replaces it.
+     *
+     * @param type the query type
+     * @param handler the handler
+     * @since 0.2.6
+     */
+    public final void registerQueryHandler(@NonNull String type, @NonNull ProxyQueryHandler handler) {
+        checkArgument(!type.contains(":"), "type may not contain ':'");
+        plugin.getQueryManager().registerHandler(type, handler);
+    }
+
+    /**
+     * Stop answering queries of the given type.
+     *
+     * @param type the query type
+     * @since 0.2.6
+     */
+    public final void unregisterQueryHandler(@NonNull String type) {
+        plugin.getQueryManager().unregisterHandler(type);
+    }
+
     /**
      * Get the current BungeeCord server ID for this server.
      * @return the current server ID
@@ -148,4 +242,55 @@ public class RedisBungeeAPI {
     public final List<String> getAllServers() {
         return RedisBungee.getServerIds();
     }
+
+    /**
+     * Get statistics for the cache used by {@link #getLastOnline(String)}, {@link #getServerFor(String)} and
+     * {@link #getPlayerIp(String)}, including hit, miss and eviction counts.
+     * @return the current cache statistics
+     * @since 0.2.6
+     */
+    public final CacheStats getPlayerCacheStats() {
+        return plugin.getPlayerCacheStats();
+    }
+
+    /**
+     * Get statistics for the cache shared by identical <code>PlayerList</code> and <code>PlayerCount</code> plugin
+     * messages. Each hit is a request that was answered without querying Redis again.
+     * @return the current cache statistics
+     * @since 0.2.6
+     */
+    public final CacheStats getPluginMessageCacheStats() {
+        return plugin.getPluginQueryStats();
+    }
+
+    /**
+     * Get how many more pings, logins and plugin messages may use Redis at the same time before RedisBungee starts
+     * turning them away, keyed by <code>ping</code>, <code>login</code> and <code>plugin_message</code>.
+     * @return the available permits for each kind of work
+     * @since 0.2.6
+     */
+    public final Map<String, Integer> getAvailableRedisPermits() {
+        return plugin.getAdmissionControl().getAvailablePermits();
+    }
+
+    /**
+     * Get how many pings, logins and plugin messages were turned away from Redis because too many were already
+     * waiting on it, keyed the same way as {@link #getAvailableRedisPermits()}.
+     * @return the number of rejections for each kind of work
+     * @since 0.2.6
+     */
+    public final Map<String, Long> getRedisRejections() {
+        return plugin.getAdmissionControl().getRejections();
+    }
+
+    /**
+     * Get how busy each of RedisBungee's Redis connection pools are. There is one pool for logins and other player
+     * bookkeeping, one for reads such as {@link #getPlayersOnline()} and {@link #queryProxies(String, String, long)},
+     * and one for background tasks.
+     * @return a list of statistics for each pool
+     * @since 0.2.6
+     */
+    public final List<PoolStats> getPoolStats() {
+        return plugin.getPoolStats();
+    }
 }
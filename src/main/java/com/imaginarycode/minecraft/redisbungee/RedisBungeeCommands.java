@@ -7,7 +7,9 @@
 package com.imaginarycode.minecraft.redisbungee;
 
 import com.google.common.base.Joiner;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Multimap;
+import com.google.common.net.InetAddresses;
 import net.md_5.bungee.api.ChatColor;
 import net.md_5.bungee.api.CommandSender;
 import net.md_5.bungee.api.chat.BaseComponent;
@@ -18,10 +20,19 @@ import net.md_5.bungee.api.plugin.Command;
 
 import java.net.InetAddress;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * This class contains subclasses that are used for the commands RedisBungee overrides or includes: /glist, /find and /lastseen.
+ * This class contains subclasses that are used for the commands RedisBungee overrides or includes: /glist, /find, /lastseen,
+ * /playersonip and /population.
  * <p/>
  * All classes use the {@link RedisBungeeAPI}.
  *
@@ -33,42 +44,169 @@ class RedisBungeeCommands {
             new ComponentBuilder("You must specify a player name.").color(ChatColor.RED).create();
     private static final BaseComponent[] PLAYER_NOT_FOUND =
             new ComponentBuilder("No such player found.").color(ChatColor.RED).create();
+    private static final BaseComponent[] NO_IP_SPECIFIED =
+            new ComponentBuilder("You must specify an IP address.").color(ChatColor.RED).create();
+    private static final BaseComponent[] INVALID_IP =
+            new ComponentBuilder("That is not a valid IP address.").color(ChatColor.RED).create();
     private static final BaseComponent[] NO_COMMAND_SPECIFIED =
             new ComponentBuilder("You must specify a command to be run.").color(ChatColor.RED).create();
 
     public static class GlistCommand extends Command {
-        GlistCommand() {
+        private static final int NAMES_PER_LINE = 40;
+        /**
+         * Snapshots older than this (or glist-refresh-seconds, if that is longer) are never shown.
+         */
+        private static final long MAX_SNAPSHOT_AGE = TimeUnit.MINUTES.toMillis(1);
+        private static final BaseComponent[] NOT_READY =
+                new ComponentBuilder("The player list is being updated. Try again in a moment.").color(ChatColor.YELLOW).create();
+        private final RedisBungee plugin;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+        private volatile GlistSnapshot snapshot = null;
+
+        GlistCommand(RedisBungee plugin) {
             super("glist", "bungeecord.command.list", "redisbungee", "rglist");
+            this.plugin = plugin;
         }
 
         @Override
         public void execute(CommandSender sender, String[] args) {
-            int count = RedisBungee.getApi().getPlayerCount();
-            BaseComponent[] playersOnline = new ComponentBuilder("").color(ChatColor.YELLOW).append(String.valueOf(count))
-                    .append(" player(s) are currently online.").create();
-            if (args.length > 0 && args[0].equals("showall")) {
-                if (RedisBungee.getConfiguration().getBoolean("canonical-glist", true)) {
-                    Multimap<String, String> serverToPlayers = RedisBungee.getApi().getServerToPlayers();
-                    for (String server : new TreeSet<>(serverToPlayers.keySet())) {
+            if (args.length > 0 && (args[0].equals("showall") || args[0].equals("server"))) {
+                // The server name comes after its own keyword, so that a server named "2" isn't taken for a page.
+                String server = null;
+                int pageArg = 1;
+                if (args[0].equals("server")) {
+                    if (args.length < 2) {
+                        sender.sendMessage(new ComponentBuilder("Usage: /glist server <server> [page]").color(ChatColor.RED).create());
+                        return;
+                    }
+                    server = args[1];
+                    pageArg = 2;
+                }
+                int page = 1;
+                if (args.length > pageArg) {
+                    try {
+                        page = Integer.parseInt(args[pageArg]);
+                    } catch (NumberFormatException e) {
+                        sender.sendMessage(new ComponentBuilder(args[pageArg] + " is not a page number.").color(ChatColor.RED).create());
+                        return;
+                    }
+                }
+                GlistSnapshot current = getSnapshot();
+                if (current == null) {
+                    sender.sendMessage(NOT_READY);
+                    return;
+                }
+                List<BaseComponent[]> lines = server == null ? current.all : current.servers.get(server.toLowerCase());
+                if (lines == null) {
+                    sender.sendMessage(new ComponentBuilder("No players are on " + server + ".").color(ChatColor.RED).create());
+                    return;
+                }
+                int pageSize = Math.max(1, RedisBungee.getConfiguration().getInt("glist-page-size", 10));
+                int pages = Math.max(1, (lines.size() + pageSize - 1) / pageSize);
+                page = Math.min(Math.max(page, 1), pages);
+                for (BaseComponent[] line : lines.subList((page - 1) * pageSize, Math.min(lines.size(), page * pageSize)))
+                    sender.sendMessage(line);
+                if (pages > 1)
+                    sender.sendMessage(new ComponentBuilder("Page " + page + " of " + pages + ". Use /glist " +
+                            (server == null ? "showall" : "server " + server) + " <page> to see more.").color(ChatColor.YELLOW).create());
+                sender.sendMessage(current.playersOnline);
+            } else {
+                int count = RedisBungee.getApi().getPlayerCount();
+                BaseComponent[] playersOnline = new ComponentBuilder("").color(ChatColor.YELLOW).append(String.valueOf(count))
+                        .append(" player(s) are currently online.").create();
+                sender.sendMessage(playersOnline);
+                sender.sendMessage(new ComponentBuilder("To see all players online, use /glist showall, or /glist server <server> for one server.").color(ChatColor.YELLOW).create());
+            }
+        }
+
+        /**
+         * Start building a new snapshot in the background, unless one is already being built.
+         */
+        void refresh() {
+            if (!refreshing.compareAndSet(false, true))
+                return;
+            try {
+                plugin.getRedisExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            snapshot = new GlistSnapshot();
+                        } finally {
+                            refreshing.set(false);
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                // Never started, e.g. because we are shutting down.
+                refreshing.set(false);
+                throw e;
+            }
+        }
+
+        /**
+         * Get the most recent snapshot, or null if there isn't one recent enough to show. Snapshots are only ever built
+         * in the background: once one is older than glist-refresh-seconds, it is still returned, but a new one is
+         * started so that the next caller gets it.
+         */
+        private GlistSnapshot getSnapshot() {
+            GlistSnapshot current = snapshot;
+            long refreshAfter = RedisBungee.getConfiguration().getInt("glist-refresh-seconds", 10) * 1000L;
+            long age = current == null ? Long.MAX_VALUE : System.currentTimeMillis() - current.created;
+            if (age > refreshAfter)
+                refresh();
+            return age > Math.max(MAX_SNAPSHOT_AGE, refreshAfter) ? null : current;
+        }
+
+        /**
+         * Everyone online, already rendered into chat lines, both for the whole network and for each server.
+         */
+        private static class GlistSnapshot {
+            private final long created = System.currentTimeMillis();
+            private final List<BaseComponent[]> all = new ArrayList<>();
+            private final Map<String, List<BaseComponent[]>> servers = new HashMap<>();
+            private final BaseComponent[] playersOnline;
+
+            private GlistSnapshot() {
+                Multimap<String, String> serverToPlayers = RedisBungee.getApi().getServerToPlayers();
+                boolean canonical = RedisBungee.getConfiguration().getBoolean("canonical-glist", true);
+                for (String server : new TreeSet<>(serverToPlayers.keySet())) {
+                    List<BaseComponent[]> lines = render(server, serverToPlayers.get(server));
+                    servers.put(server.toLowerCase(), lines);
+                    if (canonical)
+                        all.addAll(lines);
+                }
+                if (!canonical) {
+                    boolean first = true;
+                    for (List<String> names : Iterables.partition(serverToPlayers.values(), NAMES_PER_LINE)) {
+                        all.add(new ComponentBuilder((first ? "Players: " : "") + Joiner.on(", ").join(names))
+                                .color(ChatColor.YELLOW).create());
+                        first = false;
+                    }
+                }
+                // Same total as /glist without arguments, which includes players who haven't reached a server yet.
+                playersOnline = new ComponentBuilder("").color(ChatColor.YELLOW).append(String.valueOf(RedisBungee.getApi().getPlayerCount()))
+                        .append(" player(s) are currently online.").create();
+            }
+
+            private static List<BaseComponent[]> render(String server, Collection<String> players) {
+                List<BaseComponent[]> lines = new ArrayList<>();
+                for (List<String> names : Iterables.partition(players, NAMES_PER_LINE)) {
+                    TextComponent serverPlayers = new TextComponent();
+                    serverPlayers.setColor(ChatColor.WHITE);
+                    serverPlayers.setText(Joiner.on(", ").join(names));
+                    if (lines.isEmpty()) {
                         TextComponent serverName = new TextComponent();
                         serverName.setColor(ChatColor.GREEN);
                         serverName.setText("[" + server + "] ");
                         TextComponent serverCount = new TextComponent();
                         serverCount.setColor(ChatColor.YELLOW);
-                        serverCount.setText("(" + serverToPlayers.get(server).size() + "): ");
-                        TextComponent serverPlayers = new TextComponent();
-                        serverPlayers.setColor(ChatColor.WHITE);
-                        serverPlayers.setText(Joiner.on(", ").join(serverToPlayers.get(server)));
-                        sender.sendMessage(serverName, serverCount, serverPlayers);
+                        serverCount.setText("(" + players.size() + "): ");
+                        lines.add(new BaseComponent[]{serverName, serverCount, serverPlayers});
+                    } else {
+                        lines.add(new BaseComponent[]{serverPlayers});
                     }
-                } else {
-                    sender.sendMessage(new ComponentBuilder("Players: " + Joiner.on(", ").join(RedisBungee.getApi().getPlayersOnline()))
-                            .color(ChatColor.YELLOW).create());
                 }
-                sender.sendMessage(playersOnline);
-            } else {
-                sender.sendMessage(playersOnline);
-                sender.sendMessage(new ComponentBuilder("To see all players online, use /glist showall.").color(ChatColor.YELLOW).create());
+                return lines;
             }
         }
     }
@@ -147,6 +285,78 @@ class RedisBungeeCommands {
         }
     }
 
+    public static class PlayersOnIpCommand extends Command {
+        PlayersOnIpCommand() {
+            super("playersonip", "redisbungee.command.playersonip", "rplayersonip", "ipplayers");
+        }
+
+        @Override
+        public void execute(CommandSender sender, String[] args) {
+            if (args.length > 0) {
+                InetAddress ia;
+                try {
+                    // Only literal addresses, so that a hostname can't hold up the command on a DNS lookup.
+                    ia = InetAddresses.forString(args[0]);
+                } catch (IllegalArgumentException e) {
+                    sender.sendMessage(INVALID_IP);
+                    return;
+                }
+                Set<String> players = RedisBungee.getApi().getPlayersOnIp(ia);
+                TextComponent message = new TextComponent();
+                if (players.isEmpty()) {
+                    message.setColor(ChatColor.RED);
+                    message.setText("No players are connected from " + ia.getHostAddress() + ".");
+                } else {
+                    message.setColor(ChatColor.GREEN);
+                    message.setText("Players connected from " + ia.getHostAddress() + " (" + players.size() + "): " +
+                            Joiner.on(", ").join(players));
+                }
+                sender.sendMessage(message);
+            } else {
+                sender.sendMessage(NO_IP_SPECIFIED);
+            }
+        }
+    }
+
+    public static class PopulationCommand extends Command {
+        PopulationCommand() {
+            super("population", "redisbungee.command.population", "rpopulation");
+        }
+
+        @Override
+        public void execute(CommandSender sender, String[] args) {
+            String server = null;
+            PopulationHistory.Resolution resolution = PopulationHistory.Resolution.MINUTES;
+            for (String arg : args) {
+                try {
+                    resolution = PopulationHistory.Resolution.valueOf(arg.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    server = arg;
+                }
+            }
+            List<PopulationSample> samples = RedisBungee.getApi().getPopulationHistory(null, server, resolution);
+            String target = server == null ? "the network" : server;
+            if (samples.isEmpty()) {
+                sender.sendMessage(new ComponentBuilder("No population history has been recorded for " + target + " yet.")
+                        .color(ChatColor.RED).create());
+                return;
+            }
+            PopulationSample peak = PopulationHistory.peak(samples);
+            long total = 0;
+            for (PopulationSample sample : samples)
+                total += sample.getAverage();
+            PopulationSample first = samples.get(0);
+            PopulationSample last = samples.get(samples.size() - 1);
+            SimpleDateFormat format = new SimpleDateFormat();
+            sender.sendMessage(new ComponentBuilder("Population of " + target + " since " + format.format(first.getTimestamp()) + ":")
+                    .color(ChatColor.YELLOW).create());
+            sender.sendMessage(new ComponentBuilder("Peak: " + peak.getPeak() + " at " + format.format(peak.getTimestamp()))
+                    .color(ChatColor.GREEN).create());
+            sender.sendMessage(new ComponentBuilder("Average: " + total / samples.size() + " (was " + first.getAverage() +
+                    ", now " + last.getAverage() + ")").color(ChatColor.GREEN).create());
+        }
+    }
+
     public static class SendToAll extends Command {
         SendToAll() {
             super("sendtoall", "redisbungee.command.sendtoall", "rsendtoall");
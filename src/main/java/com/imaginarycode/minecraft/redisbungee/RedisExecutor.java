@@ -0,0 +1,130 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs blocking Redis work in the background. By default work is handed to a platform-thread {@link Executor}; on JVMs
+ * that support virtual threads it can instead start a virtual thread per task, with a semaphore rather than the size of
+ * a thread pool limiting how many run at once.
+ * <p/>
+ * Virtual threads are looked up reflectively, as RedisBungee is compiled for Java 7.
+ */
+class RedisExecutor {
+    private final Executor platform;
+    private final ExecutorService virtual;
+    private final Semaphore permits;
+
+    RedisExecutor(Executor platform, boolean useVirtualThreads, int maxConcurrency) {
+        this(platform, useVirtualThreads ? createVirtualExecutor() : null, maxConcurrency);
+    }
+
+    /**
+     * Creates an executor that hands tasks to the given executor in place of virtual threads, or to the platform
+     * executor if it is null.
+     */
+    RedisExecutor(Executor platform, ExecutorService virtual, int maxConcurrency) {
+        this.platform = platform;
+        this.virtual = virtual;
+        this.permits = new Semaphore(maxConcurrency);
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task.
+     *
+     * @return the executor, or null if this JVM does not support virtual threads
+     */
+    static ExecutorService createVirtualExecutor() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = Class.forName("java.lang.Thread$Builder").getMethod("name", String.class, long.class)
+                    .invoke(builder, "RedisBungee Virtual Thread #", 0L);
+            ThreadFactory factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory")
+                    .invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    boolean isVirtual() {
+        return virtual != null;
+    }
+
+    void execute(final Runnable task) {
+        if (virtual == null) {
+            platform.execute(task);
+            return;
+        }
+        virtual.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Blocking a virtual thread here is cheap, unlike blocking a pooled platform thread.
+                permits.acquireUninterruptibly();
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Wraps a task that is already run on a scheduler thread, so that in virtual thread mode the scheduler thread
+     * only hands it off instead of blocking on Redis itself.
+     * <p/>
+     * As the scheduler no longer waits for the task, a run is skipped if the previous one is still going, so that slow
+     * runs can't pile up and overlap.
+     */
+    Runnable offload(final Runnable task) {
+        if (virtual == null)
+            return task;
+        final AtomicBoolean running = new AtomicBoolean(false);
+        final Runnable guarded = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    running.set(false);
+                }
+            }
+        };
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (!running.compareAndSet(false, true))
+                    return;
+                try {
+                    execute(guarded);
+                } catch (RuntimeException e) {
+                    // Never started, e.g. because we are shutting down.
+                    running.set(false);
+                    throw e;
+                }
+            }
+        };
+    }
+
+    void shutdown() {
+        if (virtual != null)
+            virtual.shutdown();
+    }
+
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return virtual == null || virtual.awaitTermination(timeout, unit);
+    }
+}
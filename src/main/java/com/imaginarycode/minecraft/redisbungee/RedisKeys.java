@@ -0,0 +1,122 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * The names of the keys RedisBungee uses. The keys used on every login, logout and ping are built and encoded once
+ * when the configuration is loaded, so the hot paths don't rebuild them on every call.
+ */
+class RedisKeys {
+    private static final byte[] IP_PREFIX = encode("ip:");
+
+    final String serverId;
+    final String usersOnline;
+    final byte[] usersOnlineBytes;
+    final String playerCount;
+    final byte[] playerCountBytes;
+    /**
+     * Every proxy's ID, including this one even if it isn't in <code>linked-servers</code>.
+     */
+    final List<String> allProxies;
+    /**
+     * Every other proxy's ID, in the same order as {@link #otherPlayerCountBytes}.
+     */
+    final List<String> otherProxies;
+    final byte[][] otherPlayerCountBytes;
+    /**
+     * Every proxy's <code>usersOnline</code> key, including this one.
+     */
+    final byte[][] allUsersOnlineBytes;
+
+    RedisKeys(String serverId, List<String> serverIds) {
+        this.serverId = serverId;
+        this.usersOnline = usersOnline(serverId);
+        this.usersOnlineBytes = encode(usersOnline);
+        this.playerCount = playerCount(serverId);
+        this.playerCountBytes = encode(playerCount);
+        this.allProxies = serverIds.contains(serverId) ? ImmutableList.copyOf(serverIds)
+                : ImmutableList.<String>builder().addAll(serverIds).add(serverId).build();
+        ImmutableList.Builder<String> others = ImmutableList.builder();
+        for (String id : serverIds)
+            if (!id.equals(serverId))
+                others.add(id);
+        this.otherProxies = others.build();
+        this.otherPlayerCountBytes = new byte[otherProxies.size()][];
+        for (int i = 0; i < otherProxies.size(); i++)
+            otherPlayerCountBytes[i] = encode(playerCount(otherProxies.get(i)));
+        this.allUsersOnlineBytes = new byte[allProxies.size()][];
+        for (int i = 0; i < allProxies.size(); i++)
+            allUsersOnlineBytes[i] = encode(usersOnline(allProxies.get(i)));
+    }
+
+    static String usersOnline(String proxyId) {
+        return "server:" + proxyId + ":usersOnline";
+    }
+
+    static String playerCount(String proxyId) {
+        return "server:" + proxyId + ":playerCount";
+    }
+
+    static String player(String name) {
+        return "player:" + name;
+    }
+
+    static byte[] playerBytes(String name) {
+        return encode(player(name));
+    }
+
+    static String ip(String address) {
+        return "ip:" + address;
+    }
+
+    /**
+     * Builds the <code>ip:</code> key for an address read back from Redis, without decoding it first.
+     */
+    static byte[] ip(byte[] address) {
+        byte[] key = new byte[IP_PREFIX.length + address.length];
+        System.arraycopy(IP_PREFIX, 0, key, 0, IP_PREFIX.length);
+        System.arraycopy(address, 0, key, IP_PREFIX.length, address.length);
+        return key;
+    }
+
+    static byte[] encode(String value) {
+        return value.getBytes(Charsets.UTF_8);
+    }
+
+    static String decode(byte[] value) {
+        return new String(value, Charsets.UTF_8);
+    }
+
+    /**
+     * Parses a player count stored as a decimal string, without decoding it to a {@link String} first.
+     *
+     * @throws NumberFormatException if the value is not a valid count
+     */
+    static int parseCount(byte[] value) {
+        int start = value.length > 0 && value[0] == '-' ? 1 : 0;
+        // Ten digits always fit in a long, so the range check below can't be fooled by overflow.
+        if (value.length == start || value.length - start > 10)
+            throw new NumberFormatException("invalid count of length " + value.length);
+        long result = 0;
+        for (int i = start; i < value.length; i++) {
+            int digit = value[i] - '0';
+            if (digit < 0 || digit > 9)
+                throw new NumberFormatException("invalid digit in count");
+            result = result * 10 + digit;
+        }
+        if (start == 1)
+            result = -result;
+        if (result < Integer.MIN_VALUE || result > Integer.MAX_VALUE)
+            throw new NumberFormatException("count out of range");
+        return (int) result;
+    }
+}
@@ -0,0 +1,29 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee.events;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+import net.md_5.bungee.api.plugin.Event;
+
+/**
+ * This event is sent when a player on any proxy on the RedisBungee network connects to a server. It is fired on every
+ * proxy, including the one the player is on.
+ * <p/>
+ * As this event is fired from the RedisBungee PubSub listener, it is not fired on the main thread.
+ *
+ * @since 0.2.6
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class PlayerChangedServerNetworkEvent extends Event {
+    private final String player;
+    private final String proxyId;
+    private final String server;
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.imaginarycode.minecraft.redisbungee.AdmissionControl.WorkClass.*;
+import static org.junit.Assert.*;
+
+public class AdmissionControlTest {
+    @Test
+    public void rejectionsAreCountedPerKindOfWork() {
+        AdmissionControl control = new AdmissionControl(1, 1, 2, 50);
+        assertTrue(control.tryAcquire(PING));
+        assertFalse(control.tryAcquire(PING));
+        assertFalse(control.tryAcquire(PING));
+        // Pings running out doesn't take anything away from plugin messages.
+        assertTrue(control.tryAcquire(PLUGIN_MESSAGE));
+        assertTrue(control.tryAcquire(PLUGIN_MESSAGE));
+        assertFalse(control.tryAcquire(PLUGIN_MESSAGE));
+        assertEquals(ImmutableMap.of("login", 0L, "ping", 2L, "plugin_message", 1L), control.getRejections());
+        assertEquals(ImmutableMap.of("login", 1, "ping", 0, "plugin_message", 0), control.getAvailablePermits());
+
+        control.release(PING);
+        assertTrue(control.tryAcquire(PING));
+    }
+
+    @Test
+    public void loginsWaitForAPermit() {
+        AdmissionControl control = new AdmissionControl(1, 1, 1, 200);
+        assertTrue(control.tryAcquire(LOGIN));
+        long start = System.nanoTime();
+        assertFalse(control.tryAcquire(LOGIN));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 200);
+        assertEquals(1L, (long) control.getRejections().get("login"));
+    }
+}
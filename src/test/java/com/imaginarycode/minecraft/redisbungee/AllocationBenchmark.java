@@ -0,0 +1,159 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.collect.ImmutableList;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.lang.management.ManagementFactory;
+import java.util.logging.Logger;
+
+/**
+ * Measures how much memory each of the player bookkeeping hot paths allocates per call, along with how long it takes.
+ * Only allocations made by the calling thread are counted, so a server running in the same JVM doesn't skew the
+ * results.
+ * <p/>
+ * Usage: <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.imaginarycode.minecraft.redisbungee.AllocationBenchmark -Dexec.args="iterations [host port]"</code>
+ * <p/>
+ * Without a host, it runs against the in-memory {@link FakeRedisServer}, which is enough to compare allocations.
+ * Timings are only meaningful against a real Redis server. <strong>Do not run this against a production Redis
+ * server.</strong> All keys it creates use proxy IDs starting with <code>alloctest-</code> and players starting with
+ * <code>at_</code>.
+ */
+public final class AllocationBenchmark {
+    private static final int PLAYERS = 1000;
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final JedisPool pool;
+    private final PlayerTracker tracker;
+    private final String[] names = new String[PLAYERS];
+    private final String[] ips = new String[PLAYERS];
+    private final byte[][] counts = new byte[PLAYERS][];
+
+    private AllocationBenchmark(JedisPool pool) {
+        this.pool = pool;
+        this.tracker = new PlayerTracker(new RedisKeys("alloctest-0", ImmutableList.of("alloctest-0", "alloctest-1",
+                "alloctest-2", "alloctest-3")), Logger.getLogger(AllocationBenchmark.class.getName()), PLAYERS * 2, 30);
+        for (int i = 0; i < PLAYERS; i++) {
+            names[i] = "at_" + i;
+            ips[i] = "10.0." + (i / 256) + "." + (i % 256);
+            counts[i] = RedisKeys.encode(String.valueOf(i * 1000));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1 && args.length != 3) {
+            System.err.println("Usage: AllocationBenchmark iterations [host port]");
+            System.exit(1);
+        }
+        int iterations = Integer.parseInt(args[0]);
+        FakeRedisServer server = args.length == 1 ? new FakeRedisServer() : null;
+        JedisPoolConfig config = new JedisPoolConfig();
+        // One connection held by the benchmark, and one for the lookups that borrow their own.
+        config.setMaxActive(2);
+        JedisPool pool = server != null ? new JedisPool(config, "127.0.0.1", server.getPort(), 0)
+                : new JedisPool(config, args[1], Integer.parseInt(args[2]), 0);
+        try {
+            new AllocationBenchmark(pool).run(iterations);
+        } finally {
+            pool.destroy();
+            if (server != null)
+                server.close();
+        }
+    }
+
+    private void run(int iterations) {
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.err.println("This JVM can't measure per-thread allocations.");
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        final Jedis rsc = pool.getResource();
+        try {
+            for (int i = 1; i < 4; i++)
+                rsc.set(RedisKeys.playerCount("alloctest-" + i), String.valueOf(i));
+
+            System.out.println(String.format("%-24s %12s %12s", "operation", "bytes/op", "us/op"));
+            measure("join + leave", iterations, new Op() {
+                @Override
+                public void run(int i) {
+                    tracker.join(rsc, names[i], ips[i]);
+                    tracker.leave(rsc, names[i]);
+                }
+            });
+            measure("server switch", iterations, new Op() {
+                @Override
+                public void run(int i) {
+                    tracker.changeServer(rsc, names[i], "lobby");
+                }
+            });
+            measure("clean up", iterations, new Op() {
+                @Override
+                public void run(int i) {
+                    tracker.cleanUp(rsc, names[i]);
+                }
+            });
+            measure("player lookup (miss)", iterations, new Op() {
+                @Override
+                public void run(int i) {
+                    tracker.invalidate(names[i]);
+                    tracker.getPlayerData(pool, names[i]);
+                }
+            });
+            measure("player lookup (hit)", iterations, new Op() {
+                @Override
+                public void run(int i) {
+                    tracker.getPlayerData(pool, names[i]);
+                }
+            });
+            measure("count other proxies", iterations, new Op() {
+                @Override
+                public void run(int i) {
+                    tracker.countOtherProxies(rsc);
+                }
+            });
+            measure("parse count", iterations, new Op() {
+                @Override
+                public void run(int i) {
+                    RedisKeys.parseCount(counts[i]);
+                }
+            });
+        } finally {
+            try {
+                for (int i = 0; i < 4; i++)
+                    rsc.del(RedisKeys.playerCount("alloctest-" + i), RedisKeys.usersOnline("alloctest-" + i));
+                for (int i = 0; i < PLAYERS; i++)
+                    rsc.del(RedisKeys.player(names[i]), RedisKeys.ip(ips[i]));
+            } finally {
+                pool.returnResource(rsc);
+            }
+        }
+    }
+
+    private void measure(String name, int iterations, Op op) {
+        // Warm up, so that class loading and JIT compilation aren't counted.
+        for (int i = 0; i < Math.max(iterations / 10, PLAYERS); i++)
+            op.run(i % PLAYERS);
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            op.run(i % PLAYERS);
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        System.out.println(String.format("%-24s %12d %12.1f", name, allocated / iterations,
+                elapsed / 1000.0 / iterations));
+    }
+
+    private interface Op {
+        void run(int i);
+    }
+}
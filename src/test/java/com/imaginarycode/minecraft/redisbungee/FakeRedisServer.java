@@ -0,0 +1,505 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multiset;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.regex.Pattern;
+
+/**
+ * A small in-memory Redis server that speaks just enough of the protocol for RedisBungee and Jedis 2.2, so that tests
+ * can run against a real socket without a Redis install.
+ * <p/>
+ * Faults can be injected to exercise the broken-connection paths: every reply can be delayed, and the next use of a
+ * given command can drop the connection without replying or fail with an error reply. Commands received before a
+ * dropped one have already been applied, just as they would be when a real server goes away part way through.
+ */
+class FakeRedisServer implements Closeable {
+    private final ServerSocket serverSocket;
+    private final Thread acceptor;
+    private final Set<Client> clients = Collections.newSetFromMap(new ConcurrentHashMap<Client, Boolean>());
+
+    // Guarded by this.
+    private final Map<String, String> strings = new HashMap<>();
+    private final Map<String, Set<String>> sets = new HashMap<>();
+    private final Map<String, Map<String, String>> hashes = new HashMap<>();
+
+    private final Multiset<String> commandCounts = ConcurrentHashMultiset.create();
+    private final ConcurrentHashMap<String, Queue<String>> faults = new ConcurrentHashMap<>();
+    private volatile long latencyMillis = 0;
+
+    FakeRedisServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "Fake Redis Acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Creates a pool of connections to this server. A connection that is leaked, or broken and handed back as if it
+     * were healthy, makes the next borrower fail, so tests use small pools to catch both.
+     */
+    JedisPool createPool(int size) {
+        JedisPoolConfig config = new JedisPoolConfig();
+        config.setMaxActive(size);
+        config.setMaxWait(1000);
+        return new JedisPool(config, "127.0.0.1", getPort(), 500);
+    }
+
+    /**
+     * Delays every reply by the given amount of time.
+     */
+    void setLatency(long millis) {
+        latencyMillis = millis;
+    }
+
+    /**
+     * The next time the command is received, close the connection that sent it without replying.
+     */
+    void dropNext(String command) {
+        addFault(command, null);
+    }
+
+    /**
+     * The next time the command is received, reply with an error instead of running it.
+     */
+    void failNext(String command, String message) {
+        addFault(command, message);
+    }
+
+    /**
+     * Closes every open connection, as if the server had restarted. The data is kept.
+     */
+    void dropAllConnections() {
+        for (Client client : clients)
+            client.close();
+    }
+
+    int getCommandCount(String command) {
+        return commandCounts.count(command.toUpperCase());
+    }
+
+    int getConnectionCount() {
+        return clients.size();
+    }
+
+    synchronized String getString(String key) {
+        return strings.get(key);
+    }
+
+    synchronized Set<String> getSet(String key) {
+        Set<String> set = sets.get(key);
+        return set == null ? Collections.<String>emptySet() : ImmutableSet.copyOf(set);
+    }
+
+    synchronized Map<String, String> getHash(String key) {
+        Map<String, String> hash = hashes.get(key);
+        return hash == null ? Collections.<String, String>emptyMap() : ImmutableMap.copyOf(hash);
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        dropAllConnections();
+    }
+
+    private void addFault(String command, String message) {
+        String key = command.toUpperCase();
+        faults.putIfAbsent(key, new ConcurrentLinkedQueue<String>());
+        // A null message means "drop", which a ConcurrentLinkedQueue can't hold.
+        faults.get(key).add(message == null ? "" : message);
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Client client = new Client(serverSocket.accept());
+                clients.add(client);
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        client.serve();
+                    }
+                }, "Fake Redis Client");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void publish(String channel, String message, Client sender) throws IOException {
+        int receivers = 0;
+        for (Client client : clients) {
+            if (client.channels.contains(channel)) {
+                client.push("message", channel, message);
+                receivers++;
+            }
+            for (String pattern : client.patterns) {
+                if (glob(pattern).matcher(channel).matches()) {
+                    client.push("pmessage", pattern, channel, message);
+                    receivers++;
+                }
+            }
+        }
+        sender.writeInteger(receivers);
+    }
+
+    private static Pattern glob(String pattern) {
+        StringBuilder regex = new StringBuilder();
+        for (char c : pattern.toCharArray()) {
+            if (c == '*')
+                regex.append(".*");
+            else if (c == '?')
+                regex.append('.');
+            else
+                regex.append(Pattern.quote(String.valueOf(c)));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    private class Client {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final Set<String> channels = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private final Set<String> patterns = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        private Client(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        private void serve() {
+            try {
+                List<String> request;
+                while ((request = readRequest()) != null) {
+                    String command = request.get(0).toUpperCase();
+                    commandCounts.add(command);
+                    Queue<String> pending = faults.get(command);
+                    String fault = pending == null ? null : pending.poll();
+                    if (fault != null && fault.isEmpty())
+                        return;
+                    if (latencyMillis > 0)
+                        Thread.sleep(latencyMillis);
+                    synchronized (this) {
+                        if (fault != null)
+                            writeError(fault);
+                        else
+                            handle(command, request.subList(1, request.size()));
+                        out.flush();
+                    }
+                    if (command.equals("QUIT"))
+                        return;
+                }
+            } catch (IOException | InterruptedException ignored) {
+            } finally {
+                close();
+            }
+        }
+
+        private void close() {
+            clients.remove(this);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private List<String> readRequest() throws IOException {
+            String header = readLine();
+            if (header == null)
+                return null;
+            if (header.charAt(0) != '*')
+                throw new IOException("expected a multi-bulk request, got " + header);
+            int count = Integer.parseInt(header.substring(1));
+            List<String> args = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String length = readLine();
+                if (length == null || length.charAt(0) != '$')
+                    throw new IOException("expected a bulk string");
+                byte[] data = new byte[Integer.parseInt(length.substring(1))];
+                int read = 0;
+                while (read < data.length) {
+                    int n = in.read(data, read, data.length - read);
+                    if (n < 0)
+                        return null;
+                    read += n;
+                }
+                readLine();
+                args.add(new String(data, Charsets.UTF_8));
+            }
+            return args;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\r') {
+                    in.read();
+                    return line.toString();
+                }
+                line.append((char) c);
+            }
+            return null;
+        }
+
+        private void handle(String command, List<String> args) throws IOException {
+            FakeRedisServer db = FakeRedisServer.this;
+            switch (command) {
+                case "PING":
+                    writeStatus("PONG");
+                    return;
+                case "AUTH":
+                case "SELECT":
+                case "QUIT":
+                    writeStatus("OK");
+                    return;
+                case "INFO":
+                    writeBulk("# Server\r\nredis_version:2.8.0\r\n");
+                    return;
+                case "PUBLISH":
+                    publish(args.get(0), args.get(1), this);
+                    return;
+                case "SUBSCRIBE":
+                    for (String channel : args) {
+                        channels.add(channel);
+                        writeArray("subscribe", channel, channels.size() + patterns.size());
+                    }
+                    return;
+                case "PSUBSCRIBE":
+                    for (String pattern : args) {
+                        patterns.add(pattern);
+                        writeArray("psubscribe", pattern, channels.size() + patterns.size());
+                    }
+                    return;
+                case "UNSUBSCRIBE":
+                    for (String channel : args.isEmpty() ? new ArrayList<>(channels) : args) {
+                        channels.remove(channel);
+                        writeArray("unsubscribe", channel, channels.size() + patterns.size());
+                    }
+                    return;
+                case "PUNSUBSCRIBE":
+                    for (String pattern : args.isEmpty() ? new ArrayList<>(patterns) : args) {
+                        patterns.remove(pattern);
+                        writeArray("punsubscribe", pattern, channels.size() + patterns.size());
+                    }
+                    return;
+            }
+            synchronized (db) {
+                handleData(command, args);
+            }
+        }
+
+        private void handleData(String command, List<String> args) throws IOException {
+            String key = args.isEmpty() ? null : args.get(0);
+            switch (command) {
+                case "GET":
+                    writeBulk(strings.get(key));
+                    return;
+                case "SET":
+                    strings.put(key, args.get(1));
+                    writeStatus("OK");
+                    return;
+                case "MGET":
+                    out.write(("*" + args.size() + "\r\n").getBytes(Charsets.UTF_8));
+                    for (String k : args)
+                        writeBulk(strings.get(k));
+                    return;
+                case "INCR":
+                case "DECR":
+                    long value;
+                    try {
+                        value = strings.containsKey(key) ? Long.parseLong(strings.get(key)) : 0;
+                    } catch (NumberFormatException e) {
+                        writeError("ERR value is not an integer or out of range");
+                        return;
+                    }
+                    value += command.equals("INCR") ? 1 : -1;
+                    strings.put(key, String.valueOf(value));
+                    writeInteger(value);
+                    return;
+                case "EXISTS":
+                    writeInteger(strings.containsKey(key) || sets.containsKey(key) || hashes.containsKey(key) ? 1 : 0);
+                    return;
+                case "DEL":
+                    int deleted = 0;
+                    for (String k : args)
+                        if (strings.remove(k) != null | sets.remove(k) != null | hashes.remove(k) != null)
+                            deleted++;
+                    writeInteger(deleted);
+                    return;
+                case "SADD":
+                    Set<String> added = sets.get(key);
+                    if (added == null) {
+                        added = new TreeSet<>();
+                        sets.put(key, added);
+                    }
+                    int addedCount = 0;
+                    for (String member : args.subList(1, args.size()))
+                        if (added.add(member))
+                            addedCount++;
+                    writeInteger(addedCount);
+                    return;
+                case "SREM":
+                    Set<String> removed = sets.get(key);
+                    int removedCount = 0;
+                    if (removed != null) {
+                        for (String member : args.subList(1, args.size()))
+                            if (removed.remove(member))
+                                removedCount++;
+                        if (removed.isEmpty())
+                            sets.remove(key);
+                    }
+                    writeInteger(removedCount);
+                    return;
+                case "SISMEMBER":
+                    writeInteger(sets.containsKey(key) && sets.get(key).contains(args.get(1)) ? 1 : 0);
+                    return;
+                case "SCARD":
+                    writeInteger(sets.containsKey(key) ? sets.get(key).size() : 0);
+                    return;
+                case "SMEMBERS":
+                    writeArray(sets.containsKey(key) ? sets.get(key).toArray() : new Object[0]);
+                    return;
+                case "SSCAN":
+                    sscan(key, args.subList(1, args.size()));
+                    return;
+                case "HSET":
+                    Map<String, String> hash = hashes.get(key);
+                    if (hash == null) {
+                        hash = new HashMap<>();
+                        hashes.put(key, hash);
+                    }
+                    writeInteger(hash.put(args.get(1), args.get(2)) == null ? 1 : 0);
+                    return;
+                case "HGET":
+                    writeBulk(hashes.containsKey(key) ? hashes.get(key).get(args.get(1)) : null);
+                    return;
+                case "HMGET":
+                    out.write(("*" + (args.size() - 1) + "\r\n").getBytes(Charsets.UTF_8));
+                    for (String field : args.subList(1, args.size()))
+                        writeBulk(hashes.containsKey(key) ? hashes.get(key).get(field) : null);
+                    return;
+                case "HEXISTS":
+                    writeInteger(hashes.containsKey(key) && hashes.get(key).containsKey(args.get(1)) ? 1 : 0);
+                    return;
+                case "HDEL":
+                    Map<String, String> fields = hashes.get(key);
+                    int fieldsRemoved = 0;
+                    if (fields != null) {
+                        for (String field : args.subList(1, args.size()))
+                            if (fields.remove(field) != null)
+                                fieldsRemoved++;
+                        if (fields.isEmpty())
+                            hashes.remove(key);
+                    }
+                    writeInteger(fieldsRemoved);
+                    return;
+                case "HGETALL":
+                    List<Object> entries = new ArrayList<>();
+                    if (hashes.containsKey(key)) {
+                        for (Map.Entry<String, String> entry : hashes.get(key).entrySet()) {
+                            entries.add(entry.getKey());
+                            entries.add(entry.getValue());
+                        }
+                    }
+                    writeArray(entries.toArray());
+                    return;
+                default:
+                    writeError("ERR unknown command '" + command + "'");
+            }
+        }
+
+        /**
+         * Sets are kept sorted, so the cursor is simply the index to carry on from.
+         */
+        private void sscan(String key, List<String> args) throws IOException {
+            int cursor = Integer.parseInt(args.get(0));
+            int count = 10;
+            Pattern match = null;
+            for (int i = 1; i + 1 < args.size(); i += 2) {
+                if (args.get(i).equalsIgnoreCase("COUNT"))
+                    count = Integer.parseInt(args.get(i + 1));
+                else if (args.get(i).equalsIgnoreCase("MATCH"))
+                    match = glob(args.get(i + 1));
+            }
+            List<String> members = sets.containsKey(key) ? new ArrayList<>(sets.get(key)) : Collections.<String>emptyList();
+            int end = Math.min(members.size(), cursor + count);
+            List<Object> page = new ArrayList<>();
+            for (String member : members.subList(Math.min(cursor, end), end))
+                if (match == null || match.matcher(member).matches())
+                    page.add(member);
+            out.write("*2\r\n".getBytes(Charsets.UTF_8));
+            writeBulk(String.valueOf(end >= members.size() ? 0 : end));
+            writeArray(page.toArray());
+        }
+
+        private synchronized void push(Object... parts) throws IOException {
+            writeArray(parts);
+            out.flush();
+        }
+
+        private void writeStatus(String status) throws IOException {
+            out.write(("+" + status + "\r\n").getBytes(Charsets.UTF_8));
+        }
+
+        private void writeError(String message) throws IOException {
+            out.write(("-" + message + "\r\n").getBytes(Charsets.UTF_8));
+        }
+
+        private void writeInteger(long value) throws IOException {
+            out.write((":" + value + "\r\n").getBytes(Charsets.UTF_8));
+        }
+
+        private void writeBulk(String value) throws IOException {
+            if (value == null) {
+                out.write("$-1\r\n".getBytes(Charsets.UTF_8));
+                return;
+            }
+            byte[] data = value.getBytes(Charsets.UTF_8);
+            out.write(("$" + data.length + "\r\n").getBytes(Charsets.UTF_8));
+            out.write(data);
+            out.write("\r\n".getBytes(Charsets.UTF_8));
+        }
+
+        private void writeArray(Object... values) throws IOException {
+            out.write(("*" + values.length + "\r\n").getBytes(Charsets.UTF_8));
+            for (Object value : values) {
+                if (value instanceof Number)
+                    writeInteger(((Number) value).longValue());
+                else
+                    writeBulk((String) value);
+            }
+        }
+    }
+}
@@ -0,0 +1,581 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A standalone soak test that simulates several proxies and many players against a Redis server. Each simulated proxy
+ * has its own {@link PlayerTracker}, {@link AdmissionControl} and {@link PluginQueryCache}, and operations call them
+ * the same way {@link RedisBungee}'s event handlers do, so the Redis traffic and the caching match the plugin's.
+ * <p/>
+ * Usage: <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.imaginarycode.minecraft.redisbungee.LoadGenerator -Dexec.args="host port proxies players
+ * seconds threads loginsPerSec pingsPerSec switchesPerSec quitsPerSec listsPerSec lookupsPerSec [virtual]"</code>
+ * <p/>
+ * If <code>virtual</code> is given, operations run on virtual threads limited by a semaphore (as with the
+ * <code>virtual-threads</code> option) instead of a fixed pool of platform threads, so the two can be compared.
+ * <p/>
+ * <strong>Do not run this against a production Redis server.</strong> All keys it creates use proxy IDs starting with
+ * <code>loadtest-</code> and players starting with <code>lt_</code>, and are removed when it finishes.
+ */
+public final class LoadGenerator {
+    private static final int OFFLINE = -1;
+    private static final int BUSY = -2;
+
+    private final String host;
+    private final int port;
+    private final JedisPool pool;
+    private final List<SimulatedProxy> proxies = new ArrayList<>();
+    private final AtomicIntegerArray playerState;
+    private final Random random = new Random();
+    private final AtomicLong failures = new AtomicLong();
+    private final List<Operation> operations = new ArrayList<>();
+    private final Logger logger = Logger.getLogger(LoadGenerator.class.getName());
+
+    private LoadGenerator(String host, int port, JedisPool pool, int proxyCount, int playerCount) {
+        this.host = host;
+        this.port = port;
+        this.pool = pool;
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < proxyCount; i++)
+            ids.add("loadtest-" + i);
+        for (String id : ids)
+            proxies.add(new SimulatedProxy(id, ImmutableList.copyOf(ids)));
+        playerState = new AtomicIntegerArray(playerCount);
+        for (int i = 0; i < playerCount; i++)
+            playerState.set(i, OFFLINE);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 12) {
+            System.err.println("Usage: LoadGenerator host port proxies players seconds threads loginsPerSec pingsPerSec " +
+                    "switchesPerSec quitsPerSec listsPerSec lookupsPerSec [virtual]");
+            System.exit(1);
+        }
+        JedisPoolConfig config = new JedisPoolConfig();
+        config.setMaxActive(Integer.parseInt(args[5]));
+        JedisPool pool = new JedisPool(config, args[0], Integer.parseInt(args[1]), 0);
+        try {
+            LoadGenerator generator = new LoadGenerator(args[0], Integer.parseInt(args[1]), pool,
+                    Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+            generator.run(Integer.parseInt(args[4]), Integer.parseInt(args[5]), Arrays.copyOfRange(args, 6, 12),
+                    args.length > 12 && args[12].equals("virtual"));
+        } finally {
+            pool.destroy();
+        }
+    }
+
+    private void run(int seconds, int threads, String[] rates, boolean virtual) throws InterruptedException {
+        operations.add(new Operation("login", Integer.parseInt(rates[0])) {
+            @Override
+            void perform() {
+                login();
+            }
+        });
+        operations.add(new Operation("ping", Integer.parseInt(rates[1])) {
+            @Override
+            void perform() {
+                ping();
+            }
+        });
+        operations.add(new Operation("switch", Integer.parseInt(rates[2])) {
+            @Override
+            void perform() {
+                switchServer();
+            }
+        });
+        operations.add(new Operation("quit", Integer.parseInt(rates[3])) {
+            @Override
+            void perform() {
+                quit();
+            }
+        });
+        operations.add(new Operation("list", Integer.parseInt(rates[4])) {
+            @Override
+            void perform() {
+                listPlayers();
+            }
+        });
+        operations.add(new Operation("lookup", Integer.parseInt(rates[5])) {
+            @Override
+            void perform() {
+                lookup();
+            }
+        });
+
+        ChangeListener listener = new ChangeListener();
+        Thread listenerThread = new Thread(listener, "LoadGenerator PubSub Listener");
+        listenerThread.start();
+        listener.subscribed.await(10, TimeUnit.SECONDS);
+
+        long commandsBefore = totalCommands();
+        ExecutorService platform = Executors.newFixedThreadPool(threads);
+        RedisExecutor executor = new RedisExecutor(platform, virtual, threads);
+        if (virtual && !executor.isVirtual()) {
+            System.err.println("This JVM does not support virtual threads.");
+            platform.shutdown();
+            listener.poison();
+            return;
+        }
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        List<Thread> dispatchers = new ArrayList<>();
+        for (final Operation operation : operations) {
+            if (operation.rate <= 0) continue;
+            Thread dispatcher = new Thread(new Dispatcher(operation, executor, start, end), "LoadGenerator " + operation.name);
+            dispatcher.start();
+            dispatchers.add(dispatcher);
+        }
+        for (Thread dispatcher : dispatchers)
+            dispatcher.join();
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        platform.shutdown();
+        platform.awaitTermination(1, TimeUnit.MINUTES);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long commandsAfter = totalCommands();
+        listener.poison();
+        listenerThread.join(TimeUnit.SECONDS.toMillis(10));
+
+        System.out.println(String.format("Ran for %.1f seconds with %d proxies and %d players on %d %s threads.",
+                elapsed, proxies.size(), playerState.length(), threads, virtual ? "virtual" : "platform"));
+        for (Operation operation : operations)
+            operation.report(elapsed);
+        if (commandsBefore >= 0 && commandsAfter >= 0)
+            System.out.println(String.format("Redis: %.0f ops/sec", (commandsAfter - commandsBefore) / elapsed));
+        System.out.println("Failed operations: " + failures.get());
+        reportCaches();
+        checkConsistency();
+        cleanUp();
+    }
+
+    // RedisBungee#onPreLogin, then RedisBungee#onPlayerConnect.
+    private void login() {
+        int player = claimPlayer(true);
+        if (player == -1) return;
+        String name = name(player);
+        int idx = random.nextInt(proxies.size());
+        SimulatedProxy proxy = proxies.get(idx);
+        boolean online = false;
+        try {
+            if (!proxy.admission.tryAcquire(AdmissionControl.WorkClass.LOGIN))
+                return;
+            Jedis rsc = pool.getResource();
+            try {
+                if (proxy.tracker.isOnline(rsc, name))
+                    return;
+            } catch (JedisConnectionException e) {
+                pool.returnBrokenResource(rsc);
+                rsc = null;
+                throw e;
+            } finally {
+                if (rsc != null)
+                    pool.returnResource(rsc);
+                proxy.admission.release(AdmissionControl.WorkClass.LOGIN);
+            }
+            rsc = pool.getResource();
+            try {
+                proxy.tracker.join(rsc, name, ip(player));
+                proxy.localPlayers.add(name);
+                online = true;
+            } catch (JedisConnectionException e) {
+                pool.returnBrokenResource(rsc);
+                rsc = null;
+                throw e;
+            } finally {
+                if (rsc != null)
+                    pool.returnResource(rsc);
+            }
+        } finally {
+            playerState.set(player, online ? idx : OFFLINE);
+        }
+    }
+
+    // RedisBungee#onServerChange.
+    private void switchServer() {
+        int player = claimPlayer(false);
+        if (player == -1) return;
+        int idx = proxyOf(player);
+        try {
+            Jedis rsc = pool.getResource();
+            try {
+                proxies.get(idx).tracker.changeServer(rsc, name(player), "server" + random.nextInt(10));
+            } catch (JedisConnectionException e) {
+                pool.returnBrokenResource(rsc);
+                rsc = null;
+                throw e;
+            } finally {
+                if (rsc != null)
+                    pool.returnResource(rsc);
+            }
+        } finally {
+            playerState.set(player, idx);
+        }
+    }
+
+    // RedisBungee#onPlayerDisconnect.
+    private void quit() {
+        int player = claimPlayer(false);
+        if (player == -1) return;
+        int idx = proxyOf(player);
+        SimulatedProxy proxy = proxies.get(idx);
+        boolean offline = false;
+        try {
+            Jedis rsc = pool.getResource();
+            try {
+                proxy.localPlayers.remove(name(player));
+                proxy.tracker.leave(rsc, name(player));
+                offline = true;
+            } catch (JedisConnectionException e) {
+                pool.returnBrokenResource(rsc);
+                rsc = null;
+                throw e;
+            } finally {
+                if (rsc != null)
+                    pool.returnResource(rsc);
+            }
+        } finally {
+            if (!offline)
+                proxy.localPlayers.add(name(player));
+            playerState.set(player, offline ? OFFLINE : idx);
+        }
+    }
+
+    // RedisBungee#onPing, which uses RedisBungee#getCount.
+    private void ping() {
+        SimulatedProxy proxy = proxies.get(random.nextInt(proxies.size()));
+        // Beyond the limit, the plugin answers with the last count it saw without touching Redis.
+        if (!proxy.admission.tryAcquire(AdmissionControl.WorkClass.PING))
+            return;
+        try {
+            Jedis rsc = pool.getResource();
+            try {
+                proxy.tracker.countOtherProxies(rsc);
+            } catch (JedisConnectionException e) {
+                pool.returnBrokenResource(rsc);
+                rsc = null;
+                throw e;
+            } finally {
+                if (rsc != null)
+                    pool.returnResource(rsc);
+            }
+        } finally {
+            proxy.admission.release(AdmissionControl.WorkClass.PING);
+        }
+    }
+
+    // RedisBungee#onPluginMessage, for a PlayerList ALL request.
+    private void listPlayers() {
+        SimulatedProxy proxy = proxies.get(random.nextInt(proxies.size()));
+        if (!proxy.admission.tryAcquire(AdmissionControl.WorkClass.PLUGIN_MESSAGE)) {
+            proxy.queries.getIfPresent("PlayerList", "ALL");
+            return;
+        }
+        try {
+            proxy.queries.get("PlayerList", "ALL");
+        } finally {
+            proxy.admission.release(AdmissionControl.WorkClass.PLUGIN_MESSAGE);
+        }
+    }
+
+    // RedisBungee#getServerFor for a player who may be on another proxy.
+    private void lookup() {
+        SimulatedProxy proxy = proxies.get(random.nextInt(proxies.size()));
+        proxy.tracker.getPlayerData(pool, name(random.nextInt(playerState.length())));
+    }
+
+    private static String name(int player) {
+        return "lt_" + player;
+    }
+
+    private static String ip(int player) {
+        return "127.0.0." + (player % 250 + 1);
+    }
+
+    /**
+     * Marks a random player that is offline (or online) as busy, so that only one operation touches it at a time.
+     *
+     * @return the player claimed, or -1 if none could be found quickly
+     */
+    private int claimPlayer(boolean offline) {
+        for (int attempt = 0; attempt < 10; attempt++) {
+            int player = random.nextInt(playerState.length());
+            int state = playerState.get(player);
+            if (offline ? state != OFFLINE : state < 0) continue;
+            if (playerState.compareAndSet(player, state, offline ? BUSY : -3 - state))
+                return player;
+        }
+        return -1;
+    }
+
+    // Online players that are claimed are stored as -3 - proxy, so that the proxy is not lost.
+    private int proxyOf(int player) {
+        return -3 - playerState.get(player);
+    }
+
+    private void reportCaches() {
+        long hits = 0, misses = 0, queryHits = 0, queryMisses = 0;
+        Map<String, Long> rejections = new TreeMap<>();
+        for (SimulatedProxy proxy : proxies) {
+            CacheStats stats = proxy.tracker.getCacheStats();
+            hits += stats.hitCount();
+            misses += stats.missCount();
+            stats = proxy.queries.stats();
+            queryHits += stats.hitCount();
+            queryMisses += stats.missCount();
+            for (Map.Entry<String, Long> entry : proxy.admission.getRejections().entrySet()) {
+                Long sum = rejections.get(entry.getKey());
+                rejections.put(entry.getKey(), (sum == null ? 0 : sum) + entry.getValue());
+            }
+        }
+        System.out.println("Player cache: " + hits + " hits, " + misses + " misses");
+        System.out.println("Plugin message cache: " + queryHits + " hits, " + queryMisses + " misses");
+        System.out.println("Admission rejections: " + rejections);
+    }
+
+    /**
+     * Compares what ended up in Redis with what the simulated proxies think happened: which proxy each player is on,
+     * their <code>ip:</code> index entry, and each proxy's player count.
+     */
+    private void checkConsistency() {
+        int players = 0;
+        int ipIndex = 0;
+        int counts = 0;
+        Jedis rsc = pool.getResource();
+        try {
+            for (int player = 0; player < playerState.length(); player++) {
+                String name = name(player);
+                int expected = playerState.get(player);
+                boolean inconsistent = false;
+                for (int idx = 0; idx < proxies.size(); idx++) {
+                    if (rsc.sismember(RedisKeys.usersOnline(proxies.get(idx).id), name) != (idx == expected))
+                        inconsistent = true;
+                }
+                if (expected != OFFLINE && !rsc.hexists(RedisKeys.player(name), "ip"))
+                    inconsistent = true;
+                if (inconsistent)
+                    players++;
+                if (rsc.sismember(RedisKeys.ip(ip(player)), name) != (expected != OFFLINE))
+                    ipIndex++;
+            }
+            for (SimulatedProxy proxy : proxies) {
+                long members = rsc.scard(RedisKeys.usersOnline(proxy.id));
+                String count = rsc.get(RedisKeys.playerCount(proxy.id));
+                long recorded = count == null ? 0 : Long.parseLong(count);
+                if (members != proxy.localPlayers.size() || recorded != members)
+                    counts++;
+            }
+        } finally {
+            pool.returnResource(rsc);
+        }
+        System.out.println("Inconsistent players: " + players);
+        System.out.println("Inconsistent IP index entries: " + ipIndex);
+        System.out.println("Proxies with inconsistent counts: " + counts);
+    }
+
+    private void cleanUp() {
+        Jedis rsc = pool.getResource();
+        try {
+            for (SimulatedProxy proxy : proxies)
+                rsc.del(RedisKeys.usersOnline(proxy.id), RedisKeys.playerCount(proxy.id));
+            for (int player = 0; player < playerState.length(); player++)
+                rsc.del(RedisKeys.player(name(player)));
+            for (int i = 0; i < 250 && i < playerState.length(); i++)
+                rsc.del(RedisKeys.ip(ip(i)));
+        } finally {
+            pool.returnResource(rsc);
+        }
+    }
+
+    private long totalCommands() {
+        Jedis rsc = pool.getResource();
+        try {
+            for (String line : rsc.info().split("\r\n")) {
+                if (line.startsWith("total_commands_processed:"))
+                    return Long.parseLong(line.substring("total_commands_processed:".length()));
+            }
+        } finally {
+            pool.returnResource(rsc);
+        }
+        return -1;
+    }
+
+    /**
+     * The state one proxy keeps in memory, wired up as {@link RedisBungee} does with the plugin's default settings.
+     */
+    private class SimulatedProxy {
+        private final String id;
+        private final PlayerTracker tracker;
+        private final AdmissionControl admission = new AdmissionControl(16, 8, 8, 1000);
+        private final PluginQueryCache queries;
+        private final Set<String> localPlayers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        private SimulatedProxy(String id, List<String> ids) {
+            this.id = id;
+            this.tracker = new PlayerTracker(new RedisKeys(id, ids), logger, 1000, 30);
+            this.queries = new PluginQueryCache(500, new PluginQueryCache.Loader() {
+                @Override
+                public byte[] load(String subchannel, String argument) {
+                    return PluginQueryCache.playerList(true,
+                            ImmutableSet.copyOf(tracker.iteratePlayers(pool, ImmutableSet.copyOf(localPlayers))));
+                }
+            });
+        }
+    }
+
+    /**
+     * Passes change messages to every simulated proxy, as each proxy's PubSub listener would.
+     */
+    private class ChangeListener extends JedisPubSub implements Runnable {
+        private final CountDownLatch subscribed = new CountDownLatch(1);
+
+        @Override
+        public void run() {
+            Jedis rsc = new Jedis(host, port, 0);
+            try {
+                rsc.subscribe(this, "redisbungee-data");
+            } catch (JedisException ignored) {
+            } finally {
+                try {
+                    rsc.disconnect();
+                } catch (JedisException ignored) {
+                }
+            }
+        }
+
+        private void poison() {
+            if (isSubscribed())
+                unsubscribe();
+        }
+
+        @Override
+        public void onMessage(String channel, String message) {
+            for (SimulatedProxy proxy : proxies)
+                proxy.tracker.onChange(message);
+        }
+
+        @Override
+        public void onSubscribe(String channel, int subscribedChannels) {
+            subscribed.countDown();
+        }
+
+        @Override
+        public void onPMessage(String pattern, String channel, String message) {
+        }
+
+        @Override
+        public void onUnsubscribe(String channel, int subscribedChannels) {
+        }
+
+        @Override
+        public void onPUnsubscribe(String pattern, int subscribedChannels) {
+        }
+
+        @Override
+        public void onPSubscribe(String pattern, int subscribedChannels) {
+        }
+    }
+
+    private abstract class Operation {
+        private final String name;
+        private final int rate;
+        private final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+
+        private Operation(String name, int rate) {
+            this.name = name;
+            this.rate = rate;
+        }
+
+        abstract void perform();
+
+        private void execute(long scheduled) {
+            try {
+                perform();
+            } catch (RuntimeException e) {
+                failures.incrementAndGet();
+            }
+            // Measured from when the operation should have started, so that queueing counts against us.
+            latencies.add(System.nanoTime() - scheduled);
+        }
+
+        private void report(double elapsed) {
+            List<Long> sorted = new ArrayList<>(latencies);
+            if (sorted.isEmpty()) return;
+            Collections.sort(sorted);
+            System.out.println(String.format("%-7s %8d ops %9.1f ops/sec  p50 %7.2f ms  p99 %7.2f ms  max %7.2f ms",
+                    name, sorted.size(), sorted.size() / elapsed, percentile(sorted, 0.50), percentile(sorted, 0.99),
+                    sorted.get(sorted.size() - 1) / 1e6));
+        }
+
+        private double percentile(List<Long> sorted, double percentile) {
+            return sorted.get((int) Math.min(sorted.size() - 1, Math.floor(sorted.size() * percentile))) / 1e6;
+        }
+    }
+
+    private class Dispatcher implements Runnable {
+        private final Operation operation;
+        private final RedisExecutor executor;
+        private final long start;
+        private final long end;
+
+        private Dispatcher(Operation operation, RedisExecutor executor, long start, long end) {
+            this.operation = operation;
+            this.executor = executor;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            long interval = TimeUnit.SECONDS.toNanos(1) / operation.rate;
+            for (long next = start; next < end; next += interval) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                final long scheduled = next;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        operation.execute(scheduled);
+                    }
+                });
+            }
+        }
+    }
+}
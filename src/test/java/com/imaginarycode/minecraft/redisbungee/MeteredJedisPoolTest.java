@@ -0,0 +1,59 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import static org.junit.Assert.*;
+
+public class MeteredJedisPoolTest {
+    private FakeRedisServer server;
+    private MeteredJedisPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeRedisServer();
+        JedisPoolConfig config = new JedisPoolConfig();
+        config.setMaxActive(2);
+        config.setMaxWait(100);
+        pool = new MeteredJedisPool("test", config, "127.0.0.1", server.getPort(), 500, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.destroy();
+        server.close();
+    }
+
+    @Test
+    public void countsActiveAndIdleConnections() {
+        Jedis first = pool.getResource();
+        Jedis second = pool.getResource();
+        PoolStats stats = pool.getStats();
+        assertEquals(2, stats.getMaxSize());
+        assertEquals(2, stats.getActive());
+        assertEquals(0, stats.getIdle());
+
+        try {
+            pool.getResource();
+            fail("expected the pool to be exhausted");
+        } catch (JedisConnectionException expected) {
+        }
+        pool.returnResource(first);
+        pool.returnResource(second);
+        stats = pool.getStats();
+        assertEquals(0, stats.getActive());
+        assertEquals(2, stats.getIdle());
+        assertEquals(2, stats.getBorrows());
+        assertEquals(1, stats.getExhausted());
+    }
+}
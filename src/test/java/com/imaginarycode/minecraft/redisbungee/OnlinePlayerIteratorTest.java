@@ -0,0 +1,91 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class OnlinePlayerIteratorTest {
+    private FakeRedisServer server;
+    private JedisPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeRedisServer();
+        pool = server.createPool(1);
+        Jedis rsc = pool.getResource();
+        try {
+            // More than a page on one proxy, so the iterator has to follow the cursor.
+            for (int i = 0; i < 250; i++)
+                rsc.sadd(RedisKeys.usersOnline("b"), "b" + i);
+            rsc.sadd(RedisKeys.usersOnline("c"), "c0", "local0");
+        } finally {
+            pool.returnResource(rsc);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.destroy();
+        server.close();
+    }
+
+    @Test
+    public void walksEveryProxyOnce() {
+        Set<String> local = ImmutableSet.of("local0", "local1");
+        List<String> players = new ArrayList<>();
+        Iterators.addAll(players, new OnlinePlayerIterator(pool, local, ImmutableList.of("b", "c")));
+        assertEquals(253, players.size());
+        assertEquals(253, ImmutableSet.copyOf(players).size());
+        assertEquals(ImmutableList.of("local0", "local1"), players.subList(0, 2));
+        assertTrue(server.getCommandCount("SSCAN") > 3);
+    }
+
+    @Test
+    public void stoppingEarlySkipsTheRemainingPages() {
+        Iterator<String> players = new OnlinePlayerIterator(pool, ImmutableSet.<String>of(), ImmutableList.of("b", "c"));
+        for (int i = 0; i < 50; i++)
+            players.next();
+        assertEquals(1, server.getCommandCount("SSCAN"));
+    }
+
+    @Test
+    public void droppedConnectionIsNotReturnedToThePool() {
+        Iterator<String> players = new OnlinePlayerIterator(pool, ImmutableSet.<String>of(), ImmutableList.of("b", "c"));
+        players.next();
+        server.dropNext("SSCAN");
+        try {
+            Iterators.size(players);
+            fail("expected the dropped connection to fail the walk");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof JedisConnectionException);
+        }
+        // The pool only holds one connection, so this fails if the dead one was handed back.
+        assertEquals(252, Iterators.size(new OnlinePlayerIterator(pool, ImmutableSet.<String>of(), ImmutableList.of("b", "c"))));
+    }
+
+    @Test
+    public void noPoolMeansLocalPlayersOnly() {
+        Set<String> local = ImmutableSet.of("local0");
+        assertEquals(ImmutableList.copyOf(local),
+                ImmutableList.copyOf(new OnlinePlayerIterator(null, local, ImmutableList.of("b", "c"))));
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class PlayerTrackerTest {
+    private FakeRedisServer server;
+    private JedisPool pool;
+    private PlayerTracker tracker;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeRedisServer();
+        pool = server.createPool(1);
+        tracker = new PlayerTracker(new RedisKeys("a", ImmutableList.of("a", "b", "c")),
+                Logger.getLogger("PlayerTrackerTest"), 100, 30);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.destroy();
+        server.close();
+    }
+
+    @Test
+    public void joinAndLeaveKeepIndexesInStep() {
+        Jedis rsc = pool.getResource();
+        try {
+            tracker.join(rsc, "tux", "10.0.0.1");
+            assertEquals(ImmutableSet.of("tux"), server.getSet(RedisKeys.usersOnline("a")));
+            assertEquals(ImmutableSet.of("tux"), server.getSet(RedisKeys.ip("10.0.0.1")));
+            assertEquals("1", server.getString(RedisKeys.playerCount("a")));
+            assertTrue(tracker.isOnline(rsc, "tux"));
+
+            tracker.changeServer(rsc, "tux", "lobby");
+            assertEquals("lobby", server.getHash(RedisKeys.player("tux")).get("server"));
+
+            tracker.leave(rsc, "tux");
+            assertFalse(tracker.isOnline(rsc, "tux"));
+            assertTrue(server.getSet(RedisKeys.ip("10.0.0.1")).isEmpty());
+            assertEquals("0", server.getString(RedisKeys.playerCount("a")));
+            assertNull(server.getHash(RedisKeys.player("tux")).get("server"));
+            assertNotEquals("0", server.getHash(RedisKeys.player("tux")).get("online"));
+        } finally {
+            pool.returnResource(rsc);
+        }
+    }
+
+    @Test
+    public void evictingAStrandedPlayerAnnouncesTheLeave() {
+        Jedis rsc = pool.getResource();
+        try {
+            tracker.join(rsc, "tux", "10.0.0.1");
+            tracker.evict(rsc, "tux");
+            assertFalse(tracker.isOnline(rsc, "tux"));
+            assertTrue(server.getSet(RedisKeys.ip("10.0.0.1")).isEmpty());
+            // One for the join, and one for the leave.
+            assertEquals(2, server.getCommandCount("PUBLISH"));
+        } finally {
+            pool.returnResource(rsc);
+        }
+    }
+
+    @Test
+    public void countOtherProxiesResetsFunnyNumbers() {
+        Jedis rsc = pool.getResource();
+        try {
+            rsc.set(RedisKeys.playerCount("a"), "100");
+            rsc.set(RedisKeys.playerCount("b"), "5");
+            rsc.set(RedisKeys.playerCount("c"), "five");
+            assertEquals(5, tracker.countOtherProxies(rsc));
+            assertEquals("0", server.getString(RedisKeys.playerCount("c")));
+        } finally {
+            pool.returnResource(rsc);
+        }
+    }
+
+    @Test
+    public void playerDataIsCachedUntilThePlayerChanges() {
+        Jedis rsc = pool.getResource();
+        try {
+            tracker.join(rsc, "tux", "10.0.0.1");
+        } finally {
+            pool.returnResource(rsc);
+        }
+        assertEquals("10.0.0.1", tracker.getPlayerData(pool, "tux").get("ip"));
+        assertEquals("10.0.0.1", tracker.getPlayerData(pool, "tux").get("ip"));
+        assertEquals(1, server.getCommandCount("HMGET"));
+
+        tracker.onChange("serverchange:b:tux:lobby");
+        tracker.getPlayerData(pool, "tux");
+        assertEquals(2, server.getCommandCount("HMGET"));
+    }
+
+    @Test
+    public void droppedConnectionIsNotReturnedToThePool() {
+        server.dropNext("HMGET");
+        try {
+            tracker.getPlayerData(pool, "tux");
+            fail("expected the dropped connection to fail the lookup");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof JedisConnectionException);
+        }
+        // The pool only holds one connection, so this fails if the dead one was handed back.
+        assertTrue(tracker.getPlayerData(pool, "tux").isEmpty());
+    }
+
+    @Test
+    public void slowServerTimesOutInsteadOfHanging() {
+        server.setLatency(1000);
+        try {
+            tracker.getPlayerData(pool, "tux");
+            fail("expected the lookup to time out");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof JedisConnectionException);
+        }
+        server.setLatency(0);
+        assertTrue(tracker.getPlayerData(pool, "tux").isEmpty());
+    }
+
+    @Test
+    public void joinInterruptedPartWayLeavesNoStaleAddress() {
+        Jedis rsc = pool.getResource();
+        try {
+            tracker.join(rsc, "tux", "10.0.0.1");
+        } finally {
+            pool.returnResource(rsc);
+        }
+        // The proxy goes down without cleaning up, then the player joins again from somewhere else.
+        server.dropNext("PUBLISH");
+        rsc = pool.getResource();
+        try {
+            tracker.join(rsc, "tux", "10.0.0.2");
+            fail("expected the dropped connection to fail the join");
+        } catch (JedisConnectionException e) {
+            pool.returnBrokenResource(rsc);
+            rsc = null;
+        } finally {
+            if (rsc != null)
+                pool.returnResource(rsc);
+        }
+        assertTrue(server.getSet(RedisKeys.ip("10.0.0.1")).isEmpty());
+        assertEquals(ImmutableSet.of("tux"), server.getSet(RedisKeys.ip("10.0.0.2")));
+    }
+}
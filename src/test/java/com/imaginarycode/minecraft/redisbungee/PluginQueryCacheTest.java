@@ -0,0 +1,116 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PluginQueryCacheTest {
+    private final AtomicInteger loads = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private ExecutorService threads;
+
+    @Before
+    public void setUp() {
+        threads = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        threads.shutdownNow();
+    }
+
+    @Test
+    public void concurrentIdenticalQueriesShareOneLoad() throws Exception {
+        final PluginQueryCache cache = new PluginQueryCache(60000, new CountingLoader(true));
+        List<Future<byte[]>> answers = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            answers.add(threads.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    return cache.get("PlayerCount", "ALL");
+                }
+            }));
+        }
+        // Give every caller the chance to reach the cache while the first load is held up.
+        Thread.sleep(200);
+        release.countDown();
+        for (Future<byte[]> answer : answers)
+            assertEquals("PlayerCount:ALL:1", new String(answer.get(5, TimeUnit.SECONDS), "UTF-8"));
+        assertEquals(1, loads.get());
+        // Guava counts callers that waited on someone else's load as misses. Once loaded, the answer is a hit.
+        assertEquals(8, cache.stats().missCount());
+        cache.get("PlayerCount", "ALL");
+        assertEquals(1, cache.stats().hitCount());
+        assertEquals(1, cache.stats().loadCount());
+    }
+
+    @Test
+    public void answersAreReusedUntilTheyExpire() throws Exception {
+        PluginQueryCache cache = new PluginQueryCache(200, new CountingLoader(false));
+        cache.get("PlayerList", "lobby");
+        cache.get("PlayerList", "lobby");
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.stats().hitCount());
+
+        Thread.sleep(300);
+        assertNull(cache.getIfPresent("PlayerList", "lobby"));
+        cache.get("PlayerList", "lobby");
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void networkTotalsCanBeDroppedEarly() {
+        PluginQueryCache cache = new PluginQueryCache(60000, new CountingLoader(false));
+        cache.get("PlayerCount", "ALL");
+        cache.get("PlayerList", "ALL");
+        cache.get("PlayerCount", "lobby");
+        cache.invalidateNetworkTotals();
+        assertNull(cache.getIfPresent("PlayerCount", "ALL"));
+        assertNull(cache.getIfPresent("PlayerList", "ALL"));
+        assertNotNull(cache.getIfPresent("PlayerCount", "lobby"));
+    }
+
+    /**
+     * Answers every query with its own name and how many loads have been done so far, optionally holding each load
+     * up until the test releases it.
+     */
+    private class CountingLoader implements PluginQueryCache.Loader {
+        private final boolean block;
+
+        private CountingLoader(boolean block) {
+            this.block = block;
+        }
+
+        @Override
+        public byte[] load(String subchannel, String argument) {
+            int load = loads.incrementAndGet();
+            if (block) {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return RedisKeys.encode(subchannel + ":" + argument + ":" + load);
+        }
+    }
+}
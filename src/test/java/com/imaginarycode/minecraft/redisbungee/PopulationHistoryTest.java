@@ -0,0 +1,92 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PopulationHistoryTest {
+    // The start of a minute, so that samples 10 seconds apart share a bucket.
+    private static final long NOW = System.currentTimeMillis() / 60_000 * 60_000;
+
+    private FakeRedisServer server;
+    private JedisPool pool;
+    private Jedis rsc;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeRedisServer();
+        pool = server.createPool(1);
+        rsc = pool.getResource();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (rsc != null)
+            pool.returnResource(rsc);
+        pool.destroy();
+        server.close();
+    }
+
+    @Test
+    public void samplesInOneBucketKeepPeakAndAverage() {
+        PopulationHistory history = new PopulationHistory();
+        history.record(rsc, "a", 10, ImmutableMap.of("lobby", 4), NOW);
+        history.record(rsc, "a", 30, ImmutableMap.of("lobby", 6), NOW + 10_000);
+
+        List<PopulationSample> proxy = PopulationHistory.fetch(rsc, ImmutableList.of("a"), null, PopulationHistory.Resolution.MINUTES);
+        assertEquals(1, proxy.size());
+        assertEquals(30, proxy.get(0).getPeak());
+        assertEquals(20, proxy.get(0).getAverage());
+
+        List<PopulationSample> lobby = PopulationHistory.fetch(rsc, ImmutableList.of("a"), "lobby", PopulationHistory.Resolution.MINUTES);
+        assertEquals(6, lobby.get(0).getPeak());
+    }
+
+    @Test
+    public void restartKeepsWhatTheBucketAlreadyHeld() {
+        new PopulationHistory().record(rsc, "a", 50, ImmutableMap.<String, Integer>of(), NOW);
+        new PopulationHistory().record(rsc, "a", 10, ImmutableMap.<String, Integer>of(), NOW + 10_000);
+
+        PopulationSample sample = PopulationHistory.fetch(rsc, ImmutableList.of("a"), null, PopulationHistory.Resolution.MINUTES).get(0);
+        assertEquals(50, sample.getPeak());
+        assertEquals(30, sample.getAverage());
+    }
+
+    @Test
+    public void proxiesAreAddedTogether() {
+        new PopulationHistory().record(rsc, "a", 10, ImmutableMap.<String, Integer>of(), NOW);
+        new PopulationHistory().record(rsc, "b", 5, ImmutableMap.<String, Integer>of(), NOW);
+
+        PopulationSample sample = PopulationHistory.fetch(rsc, ImmutableList.of("a", "b"), null, PopulationHistory.Resolution.MINUTES).get(0);
+        assertEquals(15, sample.getPeak());
+    }
+
+    @Test
+    public void droppedConnectionSurfacesToTheCaller() {
+        server.dropNext("HSET");
+        try {
+            new PopulationHistory().record(rsc, "a", 10, ImmutableMap.<String, Integer>of(), NOW);
+            fail("expected the dropped connection to fail the write");
+        } catch (JedisConnectionException e) {
+            pool.returnBrokenResource(rsc);
+            rsc = null;
+        }
+        rsc = pool.getResource();
+        new PopulationHistory().record(rsc, "a", 10, ImmutableMap.<String, Integer>of(), NOW);
+    }
+}
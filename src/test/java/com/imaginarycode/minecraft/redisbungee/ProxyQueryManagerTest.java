@@ -0,0 +1,179 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class ProxyQueryManagerTest {
+    private FakeRedisServer server;
+    private JedisPool pool;
+    private ExecutorService threads;
+    private final List<JedisPubSub> subscriptions = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeRedisServer();
+        pool = server.createPool(1);
+        threads = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (JedisPubSub subscription : subscriptions)
+            subscription.unsubscribe();
+        threads.shutdownNow();
+        pool.destroy();
+        server.close();
+    }
+
+    @Test
+    public void gathersEveryReply() throws Exception {
+        ProxyQueryManager a = startProxy("a");
+        ProxyQueryManager b = startProxy("b");
+        a.registerHandler("echo", new Echo("a"));
+        b.registerHandler("echo", new Echo("b"));
+
+        Map<String, ProxyQueryReply> replies = a.query("echo", "hi", 2, 5000);
+        assertEquals(2, replies.size());
+        assertEquals("a:hi", replies.get("a").getResponse());
+        assertEquals("b:hi", replies.get("b").getResponse());
+    }
+
+    @Test
+    public void returnsWhatArrivedByTheDeadline() throws Exception {
+        ProxyQueryManager a = startProxy("a");
+        startProxy("b"); // never answers
+        a.registerHandler("echo", new Echo("a"));
+
+        long start = System.nanoTime();
+        Map<String, ProxyQueryReply> replies = a.query("echo", "hi", 2, 300);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 300);
+        assertEquals(1, replies.size());
+        assertTrue(replies.containsKey("a"));
+    }
+
+    @Test
+    public void droppedConnectionIsNotReturnedToThePool() throws Exception {
+        ProxyQueryManager a = startProxy("a");
+        a.registerHandler("echo", new Echo("a"));
+
+        server.dropNext("PUBLISH");
+        try {
+            a.query("echo", "hi", 1, 1000);
+            fail("expected the dropped connection to fail the query");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof JedisConnectionException);
+        }
+        // The pool only holds one connection, so this fails if the dead one was handed back.
+        assertEquals(1, a.query("echo", "hi", 1, 5000).size());
+    }
+
+    @Test
+    public void refusesToBlockANetworkThread() throws Exception {
+        final ProxyQueryManager a = startProxy("a");
+        a.registerHandler("echo", new Echo("a"));
+        final Throwable[] thrown = new Throwable[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    a.query("echo", "hi", 1, 5000);
+                } catch (Throwable t) {
+                    thrown[0] = t;
+                }
+            }
+        }, "Netty IO Thread #1");
+        thread.start();
+        thread.join();
+        assertTrue(thrown[0] instanceof IllegalStateException);
+        assertEquals(0, server.getCommandCount("PUBLISH"));
+    }
+
+    /**
+     * Starts a query manager for a proxy, with its own subscription standing in for RedisBungee's PubSub listener.
+     */
+    private ProxyQueryManager startProxy(final String proxyId) throws InterruptedException {
+        final ProxyQueryManager manager = new ProxyQueryManager(pool, new RedisExecutor(threads, false, 8), proxyId,
+                Logger.getLogger("ProxyQueryManagerTest"));
+        final CountDownLatch subscribed = new CountDownLatch(2);
+        final JedisPubSub subscription = new JedisPubSub() {
+            @Override
+            public void onMessage(String channel, String message) {
+                if (channel.equals("redisbungee-query"))
+                    manager.onQuery(message);
+                else
+                    manager.onReply(message);
+            }
+
+            @Override
+            public void onSubscribe(String channel, int subscribedChannels) {
+                subscribed.countDown();
+            }
+
+            @Override
+            public void onPMessage(String pattern, String channel, String message) {
+            }
+
+            @Override
+            public void onUnsubscribe(String channel, int subscribedChannels) {
+            }
+
+            @Override
+            public void onPUnsubscribe(String pattern, int subscribedChannels) {
+            }
+
+            @Override
+            public void onPSubscribe(String pattern, int subscribedChannels) {
+            }
+        };
+        subscriptions.add(subscription);
+        threads.execute(new Runnable() {
+            @Override
+            public void run() {
+                Jedis rsc = new Jedis("127.0.0.1", server.getPort(), 0);
+                try {
+                    rsc.subscribe(subscription, "redisbungee-query", "redisbungee-reply-" + proxyId);
+                } catch (JedisConnectionException ignored) {
+                } finally {
+                    rsc.disconnect();
+                }
+            }
+        });
+        assertTrue(subscribed.await(5, TimeUnit.SECONDS));
+        return manager;
+    }
+
+    private static class Echo implements ProxyQueryHandler {
+        private final String proxyId;
+
+        private Echo(String proxyId) {
+            this.proxyId = proxyId;
+        }
+
+        @Override
+        public String handle(String argument) {
+            return proxyId + ":" + argument;
+        }
+    }
+}
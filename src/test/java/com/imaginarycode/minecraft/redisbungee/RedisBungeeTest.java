@@ -0,0 +1,403 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.imaginarycode.minecraft.redisbungee.events.PlayerJoinedNetworkEvent;
+import net.md_5.bungee.api.Callback;
+import net.md_5.bungee.api.CommandSender;
+import net.md_5.bungee.api.ProxyServer;
+import net.md_5.bungee.api.ServerPing;
+import net.md_5.bungee.api.chat.BaseComponent;
+import net.md_5.bungee.api.config.ServerInfo;
+import net.md_5.bungee.api.connection.PendingConnection;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+import net.md_5.bungee.api.connection.Server;
+import net.md_5.bungee.api.event.PlayerDisconnectEvent;
+import net.md_5.bungee.api.event.PluginMessageEvent;
+import net.md_5.bungee.api.event.PostLoginEvent;
+import net.md_5.bungee.api.event.PreLoginEvent;
+import net.md_5.bungee.api.event.ProxyPingEvent;
+import net.md_5.bungee.api.plugin.Command;
+import net.md_5.bungee.api.plugin.Plugin;
+import net.md_5.bungee.api.plugin.PluginManager;
+import net.md_5.bungee.api.plugin.PluginTesting;
+import net.md_5.bungee.api.scheduler.ScheduledTask;
+import net.md_5.bungee.api.scheduler.TaskScheduler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import redis.clients.jedis.Jedis;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Runs the plugin's event handlers and {@link RedisBungeeAPI} against {@link FakeRedisServer}. Each pool holds a single
+ * connection, so a broken connection that is handed back to its pool makes the next call fail.
+ */
+public class RedisBungeeTest {
+    private static final String NOT_READY = "The player list is being updated. Try again in a moment.";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeRedisServer server;
+    private Jedis redis;
+    private ExecutorService threads;
+    private PluginManager pluginManager;
+    private RedisBungee plugin;
+    private RedisBungeeAPI api;
+    private boolean enabled = false;
+    private ArgumentCaptor<Command> commands;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeRedisServer();
+        redis = new Jedis("127.0.0.1", server.getPort());
+        threads = Executors.newCachedThreadPool();
+
+        ProxyServer proxy = mock(ProxyServer.class);
+        pluginManager = mock(PluginManager.class);
+        TaskScheduler scheduler = mock(TaskScheduler.class);
+        when(proxy.getLogger()).thenReturn(Logger.getLogger("RedisBungeeTest"));
+        when(proxy.getPluginsFolder()).thenReturn(folder.getRoot());
+        when(proxy.getPluginManager()).thenReturn(pluginManager);
+        when(proxy.getScheduler()).thenReturn(scheduler);
+        when(proxy.getPlayers()).thenReturn(Collections.<ProxiedPlayer>emptyList());
+        when(proxy.getServers()).thenReturn(Collections.<String, ServerInfo>emptyMap());
+        commands = ArgumentCaptor.forClass(Command.class);
+        doNothing().when(pluginManager).registerCommand(any(Plugin.class), commands.capture());
+        when(scheduler.runAsync(any(Plugin.class), any(Runnable.class))).thenAnswer(new Answer<ScheduledTask>() {
+            @Override
+            public ScheduledTask answer(InvocationOnMock invocation) {
+                threads.execute((Runnable) invocation.getArguments()[1]);
+                return null;
+            }
+        });
+
+        File dataFolder = new File(folder.getRoot(), "RedisBungee");
+        assertTrue(dataFolder.mkdir());
+        Files.write("redis-server: 127.0.0.1\n" +
+                "redis-port: " + server.getPort() + "\n" +
+                "server-id: test\n" +
+                "linked-servers:\n" +
+                "- test\n" +
+                "- other\n" +
+                "login-pool-size: 1\n" +
+                "login-pool-timeout-ms: 500\n" +
+                "read-pool-size: 1\n" +
+                "read-pool-timeout-ms: 500\n" +
+                "maintenance-pool-size: 1\n" +
+                "maintenance-pool-timeout-ms: 500\n" +
+                "max-concurrent-pings: 1\n" +
+                "max-concurrent-plugin-messages: 1\n", new File(dataFolder, "config.yml"), Charsets.UTF_8);
+
+        plugin = new RedisBungee();
+        PluginTesting.init(plugin, proxy, "RedisBungee");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (enabled)
+            plugin.onDisable();
+        redis.disconnect();
+        threads.shutdownNow();
+        server.close();
+    }
+
+    @Test
+    public void loginsAreVisibleThroughTheApi() throws Exception {
+        enable();
+        redis.set(RedisKeys.playerCount("other"), "3");
+
+        plugin.onPlayerConnect(new PostLoginEvent(player("tux", "10.0.0.1")));
+
+        assertTrue(api.isPlayerOnline("tux"));
+        assertEquals(ImmutableSet.of("tux"), api.getPlayersOnIp(InetAddress.getByName("10.0.0.1")));
+        assertEquals(3, api.getPlayerCount());
+        verify(pluginManager, timeout(5000)).callEvent(any(PlayerJoinedNetworkEvent.class));
+
+        plugin.onPlayerDisconnect(new PlayerDisconnectEvent(player("tux", "10.0.0.1")));
+        assertFalse(api.isPlayerOnline("tux"));
+        assertTrue(api.getPlayersOnIp(InetAddress.getByName("10.0.0.1")).isEmpty());
+    }
+
+    @Test
+    public void brokenReadConnectionIsNotReused() throws Exception {
+        enable();
+        server.dropNext("HMGET");
+        try {
+            api.getLastOnline("tux");
+            fail("expected the dropped connection to fail the lookup");
+        } catch (RuntimeException expected) {
+        }
+        assertEquals(-1, api.getLastOnline("tux"));
+
+        server.dropNext("MGET");
+        try {
+            api.getPlayerCount();
+            fail("expected the dropped connection to fail the count");
+        } catch (RuntimeException expected) {
+        }
+        assertEquals(0, api.getPlayerCount());
+    }
+
+    @Test
+    public void slowReadTimesOut() throws Exception {
+        enable();
+        server.setLatency(1000);
+        try {
+            api.getPlayersOnline();
+            fail("expected the lookup to time out");
+        } catch (RuntimeException expected) {
+        }
+        server.setLatency(0);
+        assertTrue(api.getPlayersOnline().isEmpty());
+    }
+
+    @Test
+    public void brokenLoginConnectionIsNotReused() throws Exception {
+        enable();
+        server.dropNext("INCR");
+        // Logged, not thrown, so that the player still gets in.
+        plugin.onPlayerConnect(new PostLoginEvent(player("tux", "10.0.0.1")));
+        plugin.onPlayerConnect(new PostLoginEvent(player("md_5", "10.0.0.2")));
+        assertEquals(ImmutableSet.of("md_5"), server.getSet(RedisKeys.ip("10.0.0.2")));
+    }
+
+    @Test
+    public void duplicateLoginIsRefused() throws Exception {
+        enable();
+        redis.sadd(RedisKeys.usersOnline("other"), "tux");
+        assertTrue(preLogin("tux").isCancelled());
+        assertFalse(preLogin("md_5").isCancelled());
+    }
+
+    @Test
+    public void preLoginCompletesWhenRedisGoesAway() throws Exception {
+        enable();
+        server.dropNext("SISMEMBER");
+        // The login goes ahead rather than being held up forever.
+        assertFalse(preLogin("tux").isCancelled());
+        redis.sadd(RedisKeys.usersOnline("other"), "tux");
+        assertTrue(preLogin("tux").isCancelled());
+    }
+
+    @Test
+    public void startupCleansUpPlayersLeftOverFromACrash() throws Exception {
+        redis.sadd(RedisKeys.usersOnline("test"), "ghost", "switcher");
+        redis.sadd(RedisKeys.usersOnline("other"), "switcher");
+        redis.hset(RedisKeys.player("ghost"), "ip", "10.0.0.1");
+        redis.sadd(RedisKeys.ip("10.0.0.1"), "ghost");
+
+        plugin.onEnable();
+        enabled = true;
+        // Only the player who is on no other proxy is announced as having left the network.
+        assertEquals(1, server.getCommandCount("PUBLISH"));
+        awaitListener();
+        assertTrue(server.getSet(RedisKeys.usersOnline("test")).isEmpty());
+        assertTrue(server.getSet(RedisKeys.ip("10.0.0.1")).isEmpty());
+        assertEquals(ImmutableSet.of("switcher"), server.getSet(RedisKeys.usersOnline("other")));
+    }
+
+    @Test
+    public void startupCleanupFailureIsReported() throws Exception {
+        server.dropNext("SCARD");
+        try {
+            plugin.onEnable();
+            fail("expected the dropped connection to fail startup");
+        } catch (RuntimeException expected) {
+        }
+    }
+
+    @Test
+    public void shutdownCleansUp() throws Exception {
+        enable();
+        plugin.onPlayerConnect(new PostLoginEvent(player("tux", "10.0.0.1")));
+        plugin.onDisable();
+        enabled = false;
+        assertTrue(server.getSet(RedisKeys.usersOnline("test")).isEmpty());
+        assertEquals("0", server.getString(RedisKeys.playerCount("test")));
+    }
+
+    @Test
+    public void shutdownFinishesWhenRedisGoesAway() throws Exception {
+        enable();
+        server.dropNext("SCARD");
+        // Logged, not thrown, so that the proxy can still shut down.
+        plugin.onDisable();
+        enabled = false;
+    }
+
+    @Test
+    public void glistNeverBuildsOnTheCallersThread() throws Exception {
+        enable();
+        RedisBungeeCommands.GlistCommand glist = new RedisBungeeCommands.GlistCommand(plugin);
+        int builds = server.getCommandCount("MGET");
+        server.setLatency(200);
+        long start = System.nanoTime();
+        // Only one of these starts a build, and none of them wait for it.
+        for (int i = 0; i < 3; i++)
+            assertEquals(NOT_READY, run(glist, "showall").get(0));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 200);
+        server.setLatency(0);
+        awaitSnapshot(glist);
+        assertEquals(builds + 1, server.getCommandCount("MGET"));
+    }
+
+    @Test
+    public void playersOnIpOnlyTakesLiteralAddresses() throws Exception {
+        enable();
+        plugin.onPlayerConnect(new PostLoginEvent(player("tux", "10.0.0.1")));
+        RedisBungeeCommands.PlayersOnIpCommand command = new RedisBungeeCommands.PlayersOnIpCommand();
+        assertEquals(ImmutableList.of("Players connected from 10.0.0.1 (1): tux"), run(command, "10.0.0.1"));
+        assertEquals(ImmutableList.of("That is not a valid IP address."), run(command, "localhost"));
+    }
+
+    @Test
+    public void pingsFallBackToTheLastCountWhenOutOfPermits() throws Exception {
+        enable();
+        redis.set(RedisKeys.playerCount("other"), "3");
+        assertEquals(3, ping());
+        redis.set(RedisKeys.playerCount("other"), "7");
+
+        AdmissionControl admission = plugin.getAdmissionControl();
+        assertTrue(admission.tryAcquire(AdmissionControl.WorkClass.PING));
+        assertEquals(3, ping());
+        assertEquals(1L, (long) api.getRedisRejections().get("ping"));
+        admission.release(AdmissionControl.WorkClass.PING);
+        assertEquals(7, ping());
+    }
+
+    @Test
+    public void pluginMessagesAreAnsweredFromTheCacheWhenOutOfPermits() throws Exception {
+        enable();
+        redis.set(RedisKeys.playerCount("other"), "3");
+        Server lobby = mock(Server.class);
+        plugin.onPluginMessage(pluginMessage(lobby, "PlayerCount", "ALL"));
+        ArgumentCaptor<byte[]> answer = ArgumentCaptor.forClass(byte[].class);
+        verify(lobby).sendData(eq("RedisBungee"), answer.capture());
+
+        AdmissionControl admission = plugin.getAdmissionControl();
+        assertTrue(admission.tryAcquire(AdmissionControl.WorkClass.PLUGIN_MESSAGE));
+        reset(lobby);
+        plugin.onPluginMessage(pluginMessage(lobby, "PlayerCount", "ALL"));
+        verify(lobby).sendData("RedisBungee", answer.getValue());
+        // Nothing cached, so there is no answer rather than a wait on Redis.
+        reset(lobby);
+        plugin.onPluginMessage(pluginMessage(lobby, "PlayerCount", "lobby"));
+        plugin.onPluginMessage(pluginMessage(lobby, "LastOnline", "tux"));
+        verify(lobby, never()).sendData(anyString(), any(byte[].class));
+        assertEquals(3L, (long) api.getRedisRejections().get("plugin_message"));
+        admission.release(AdmissionControl.WorkClass.PLUGIN_MESSAGE);
+    }
+
+    private void enable() throws InterruptedException {
+        plugin.onEnable();
+        enabled = true;
+        awaitListener();
+    }
+
+    private void awaitListener() throws InterruptedException {
+        api = RedisBungee.getApi();
+        // Wait for the PubSub listener to subscribe. Blank commands are ignored.
+        for (int i = 0; i < 100 && redis.publish("redisbungee-allservers", " ") == 0; i++)
+            Thread.sleep(50);
+        // Wait for the /glist snapshot started at startup, so it doesn't compete for the single read connection.
+        for (Command command : commands.getAllValues())
+            if (command instanceof RedisBungeeCommands.GlistCommand)
+                awaitSnapshot((RedisBungeeCommands.GlistCommand) command);
+    }
+
+    private static void awaitSnapshot(RedisBungeeCommands.GlistCommand glist) throws InterruptedException {
+        for (int i = 0; i < 100 && run(glist, "showall").get(0).equals(NOT_READY); i++)
+            Thread.sleep(50);
+    }
+
+    private int ping() {
+        ServerPing response = new ServerPing();
+        response.setPlayers(new ServerPing.Players(100, 0, null));
+        ProxyPingEvent event = new ProxyPingEvent(mock(PendingConnection.class), response);
+        plugin.onPing(event);
+        return event.getResponse().getPlayers().getOnline();
+    }
+
+    private static PluginMessageEvent pluginMessage(Server sender, String subchannel, String argument) {
+        ByteArrayDataOutput out = ByteStreams.newDataOutput();
+        out.writeUTF(subchannel);
+        out.writeUTF(argument);
+        return new PluginMessageEvent(sender, mock(ProxiedPlayer.class), "RedisBungee", out.toByteArray());
+    }
+
+    /**
+     * Runs a command, and returns the text of each message it sent.
+     */
+    private static List<String> run(Command command, String... args) {
+        CommandSender sender = mock(CommandSender.class);
+        final List<String> messages = new ArrayList<>();
+        Answer<Void> record = new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                StringBuilder message = new StringBuilder();
+                for (Object component : invocation.getArguments())
+                    message.append(((BaseComponent) component).toPlainText());
+                messages.add(message.toString());
+                return null;
+            }
+        };
+        doAnswer(record).when(sender).sendMessage((BaseComponent[]) anyVararg());
+        doAnswer(record).when(sender).sendMessage(any(BaseComponent.class));
+        command.execute(sender, args);
+        return messages;
+    }
+
+    private PreLoginEvent preLogin(String name) throws InterruptedException {
+        PendingConnection connection = mock(PendingConnection.class);
+        when(connection.getName()).thenReturn(name);
+        final CountDownLatch done = new CountDownLatch(1);
+        PreLoginEvent event = new PreLoginEvent(connection, new Callback<PreLoginEvent>() {
+            @Override
+            public void done(PreLoginEvent result, Throwable error) {
+                done.countDown();
+            }
+        });
+        plugin.onPreLogin(event);
+        event.postCall();
+        assertTrue("the login was never completed", done.await(5, TimeUnit.SECONDS));
+        return event;
+    }
+
+    private static ProxiedPlayer player(String name, String ip) {
+        ProxiedPlayer player = mock(ProxiedPlayer.class);
+        when(player.getName()).thenReturn(name);
+        when(player.getAddress()).thenReturn(new InetSocketAddress(ip, 25565));
+        return player;
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RedisExecutorTest {
+    private ExecutorService threads;
+    private RedisExecutor executor;
+
+    @Before
+    public void setUp() {
+        threads = Executors.newCachedThreadPool();
+        // The thread pool stands in for virtual threads, which this test can't count on the JVM having.
+        executor = new RedisExecutor(threads, threads, 8);
+    }
+
+    @After
+    public void tearDown() {
+        threads.shutdownNow();
+    }
+
+    @Test
+    public void offloadedRunsNeverOverlap() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable task = executor.offload(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        // The scheduler thread only hands the task off, so it isn't held up by it.
+        task.run();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        task.run();
+        Thread.sleep(100);
+        assertEquals(1, runs.get());
+
+        release.countDown();
+        for (int i = 0; i < 100 && runs.get() < 2; i++) {
+            task.run();
+            Thread.sleep(50);
+        }
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void awaitTerminationWaitsForOffloadedWork() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.offload(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }).run();
+        executor.shutdown();
+        assertFalse(executor.awaitTermination(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+}
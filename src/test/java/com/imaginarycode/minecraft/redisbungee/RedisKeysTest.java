@@ -0,0 +1,59 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RedisKeysTest {
+    @Test
+    public void parsesCounts() {
+        assertEquals(0, parse("0"));
+        assertEquals(42, parse("42"));
+        assertEquals(-3, parse("-3"));
+        assertEquals(Integer.MAX_VALUE, parse("2147483647"));
+        assertEquals(Integer.MIN_VALUE, parse("-2147483648"));
+        assertEquals(-1000000000, parse("-1000000000"));
+    }
+
+    @Test
+    public void rejectsCountsThatDontFit() {
+        assertRejected("2147483648");
+        assertRejected("-2147483649");
+        assertRejected("9999999999");
+        assertRejected("99999999999");
+        assertRejected("-99999999999");
+    }
+
+    @Test
+    public void rejectsFunnyNumbers() {
+        assertRejected("");
+        assertRejected("-");
+        assertRejected("five");
+        assertRejected("1.5");
+        assertRejected("--1");
+        assertRejected(" 1");
+    }
+
+    @Test
+    public void buildsIpKeysFromRawAddresses() {
+        assertArrayEquals(RedisKeys.encode(RedisKeys.ip("10.0.0.1")), RedisKeys.ip(RedisKeys.encode("10.0.0.1")));
+    }
+
+    private static int parse(String value) {
+        return RedisKeys.parseCount(RedisKeys.encode(value));
+    }
+
+    private static void assertRejected(String value) {
+        try {
+            parse(value);
+            fail("expected \"" + value + "\" to be rejected");
+        } catch (NumberFormatException expected) {
+        }
+    }
+}
@@ -0,0 +1,23 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package net.md_5.bungee.api.plugin;
+
+import net.md_5.bungee.api.ProxyServer;
+
+/**
+ * Lets tests set up a plugin the way BungeeCord's plugin manager does, without loading it from a jar.
+ */
+public class PluginTesting {
+    private PluginTesting() {
+    }
+
+    public static void init(Plugin plugin, ProxyServer proxy, String name) {
+        PluginDescription description = new PluginDescription();
+        description.setName(name);
+        plugin.init(proxy, description);
+    }
+}